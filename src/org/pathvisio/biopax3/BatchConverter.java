@@ -0,0 +1,479 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.pathvisio.biopax3.exporter.ExportHelper;
+import org.pathvisio.biopax3.importer.Compression;
+import org.pathvisio.biopax3.importer.ImportHelper;
+import org.pathvisio.biopax3.importer.ReaderBackend;
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.util.FileUtils;
+import org.pathvisio.core.util.ProgressKeeper;
+import org.pathvisio.core.view.MIMShapes;
+
+/**
+ * Command line tool that converts all files in a directory, from BioPAX to GPML
+ * or from GPML to BioPAX, on a pool of worker threads.
+ * <p>
+ * Each file has a time limit. When it runs out, the conversion is cancelled
+ * (imports stop at the next element, see {@link ImportHelper#ImportHelper(File, ReaderBackend, ProgressKeeper)},
+ * exports at the next GPML element or between reading, mapping and writing),
+ * any partial output is deleted and the file is counted as a failure. A summary of throughput, failures and
+ * peak heap use is printed at the end.
+ * <p>
+ * Imports also read gzip compressed .owl.gz files, and zip archives, of which
+ * every .owl entry is converted into a subdirectory named after the archive.
+ * <pre>
+ * BatchConverter [options] import|export &lt;input dir&gt; &lt;output dir&gt;
+ *   -threads n   number of worker threads, defaults to the number of processors
+ *   -timeout s   time limit per file in seconds, defaults to 600, 0 for no limit
+ *   -stream      write GPML while converting, see {@link ImportHelper#writeGpml(OutputStream)}
+ *   -gzip        gzip compress the exported .owl files
+ * </pre>
+ * The exit code is 0 when all files were converted, 1 when some failed and 2 on a usage error.
+ */
+public class BatchConverter
+{
+	public enum Direction
+	{
+		/** BioPAX OWL files to GPML */
+		IMPORT(".owl", ".gpml"),
+		/** GPML files to BioPAX OWL */
+		EXPORT(".gpml", ".owl");
+
+		private final String from;
+		private final String to;
+
+		private Direction(String from, String to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private final Direction direction;
+	private final File outDir;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long timeoutMillis = 600000;
+	private boolean stream = false;
+	private boolean gzip = false;
+
+	private final AtomicInteger converted = new AtomicInteger();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final List<String> failures = new ArrayList<String>();
+
+	public BatchConverter(Direction direction, File outDir)
+	{
+		this.direction = direction;
+		this.outDir = outDir;
+	}
+
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Set the time limit per file, 0 for no limit.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit)
+	{
+		this.timeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Use the streaming GPML writer for imports, see {@link ImportHelper#writeGpml(OutputStream)}.
+	 */
+	public void setStream(boolean stream)
+	{
+		this.stream = stream;
+	}
+
+	/**
+	 * Gzip compress the output of exports, see {@link ExportHelper#export(File, boolean)}.
+	 */
+	public void setGzip(boolean gzip)
+	{
+		this.gzip = gzip;
+	}
+
+	/**
+	 * A single file conversion. The watchdog cancels it through its progress
+	 * keeper, and interrupts the worker thread for conversions that don't check it.
+	 */
+	private class Job implements Runnable
+	{
+		final File in;
+		/** The archive and entry to convert, or null to convert the file itself */
+		final ZipFile zip;
+		final ZipEntry entry;
+		final File out;
+		final ProgressKeeper progress = new ProgressKeeper(100);
+		volatile long started = 0;
+		volatile Future<?> future;
+		volatile boolean timedOut = false;
+		volatile String error = null;
+
+		Job(File in, ZipFile zip, ZipEntry entry, File out)
+		{
+			this.in = in;
+			this.zip = zip;
+			this.entry = entry;
+			this.out = out;
+		}
+
+		String getName()
+		{
+			return entry == null ? in.getName() : in.getName() + "!" + entry.getName();
+		}
+
+		public void run()
+		{
+			started = System.currentTimeMillis();
+			boolean done = false;
+			try
+			{
+				convert();
+				synchronized (this)
+				{
+					// a job that timed out counts as a failure, even if it completed
+					done = !timedOut;
+					started = -1;
+				}
+				if (!done) error = "timed out";
+			}
+			catch (Exception ex)
+			{
+				error = timedOut ? "timed out" : String.valueOf(ex);
+			}
+			finally
+			{
+				started = -1;
+				// leave no partial output behind, also after errors such as OutOfMemoryError
+				if (!done)
+				{
+					delete(out);
+					if (direction == Direction.EXPORT) delete(ExportHelper.getStyleSheetFile(out));
+				}
+			}
+			if (!done) return;
+			converted.incrementAndGet();
+			bytesIn.addAndGet(entry == null ? in.length() : Math.max(0, entry.getCompressedSize()));
+		}
+
+		private void convert() throws Exception
+		{
+			if (direction == Direction.IMPORT)
+			{
+				ImportHelper helper = entry == null ?
+						new ImportHelper(in, ReaderBackend.STAX, progress) :
+						new ImportHelper(zip.getInputStream(entry), entry.getName(), ReaderBackend.STAX, progress);
+				try
+				{
+					if (stream)
+					{
+						OutputStream os = new BufferedOutputStream(new FileOutputStream(out));
+						try
+						{
+							helper.writeGpml(os);
+						}
+						finally
+						{
+							os.close();
+						}
+					}
+					else
+					{
+						Pathway pwy = helper.convertAll();
+						checkCancelled();
+						pwy.writeToXml(out, true);
+					}
+				}
+				finally
+				{
+					helper.close();
+				}
+			}
+			else
+			{
+				Pathway pwy = new Pathway();
+				pwy.readFromXml(in, true);
+				checkCancelled();
+				ExportHelper exporter = new ExportHelper(pwy);
+				checkCancelled();
+				exporter.export(out, false);
+			}
+		}
+
+		private void delete(File f)
+		{
+			if (f.exists() && !f.delete()) Logger.log.warn("Unable to delete " + f);
+		}
+
+		/**
+		 * Stop between the steps of a conversion once the job timed out. Exports and
+		 * GPML reading and writing don't check the progress keeper themselves.
+		 */
+		private void checkCancelled()
+		{
+			if (progress.isCancelled() || Thread.currentThread().isInterrupted())
+			{
+				throw new CancellationException("Conversion of " + getName() + " was cancelled");
+			}
+		}
+
+		/** Cancel the job if it has been running for longer than the time limit */
+		synchronized void check(long now)
+		{
+			long s = started;
+			if (s <= 0 || timedOut || now - s < timeoutMillis) return;
+			timedOut = true;
+			progress.cancel();
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Convert all files in the input directory with the extension of the direction.
+	 * @return true if all files were converted
+	 */
+	public boolean run(File inDir) throws InterruptedException
+	{
+		String ext = direction.from;
+		File[] files = inDir.listFiles();
+		if (files == null) throw new IllegalArgumentException("Not a directory: " + inDir);
+		Arrays.sort(files);
+		outDir.mkdirs();
+
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+		final List<Job> jobs = new ArrayList<Job>();
+		List<ZipFile> archives = new ArrayList<ZipFile>();
+		try
+		{
+			for (File f : files)
+			{
+				if (!f.isFile()) continue;
+				String name = f.getName().toLowerCase();
+				if (direction == Direction.IMPORT && name.endsWith(".zip"))
+				{
+					addArchive(f, jobs, archives);
+				}
+				else if (name.endsWith(ext) || (direction == Direction.IMPORT && name.endsWith(ext + ".gz")))
+				{
+					jobs.add(new Job(f, null, null, new File(outDir, outputName(f.getName()))));
+				}
+			}
+			// create all jobs before they can run, the watchdog needs their futures
+			for (Job job : jobs) job.future = pool.submit(job);
+			if (timeoutMillis > 0)
+			{
+				watchdog.scheduleWithFixedDelay(new Runnable() {
+					public void run()
+					{
+						long now = System.currentTimeMillis();
+						for (Job job : jobs) job.check(now);
+					}
+				}, 1, 1, TimeUnit.SECONDS);
+			}
+
+			int done = 0;
+			for (Job job : jobs)
+			{
+				String error = null;
+				try
+				{
+					job.future.get();
+					error = job.error;
+				}
+				catch (ExecutionException ex)
+				{
+					// errors such as OutOfMemoryError
+					error = String.valueOf(ex.getCause());
+				}
+				catch (CancellationException ex)
+				{
+					// the worker may still be running, it's left to finish when it checks for cancellation
+					error = "timed out";
+				}
+				done++;
+				if (error != null)
+				{
+					failures.add(job.getName() + ": " + error);
+					Logger.log.error("Failed to convert " + job.getName() + ": " + error);
+				}
+				System.out.println("[" + done + "/" + jobs.size() + "] " + job.getName() +
+						(error == null ? "" : " FAILED: " + error));
+			}
+		}
+		finally
+		{
+			watchdog.shutdownNow();
+			pool.shutdownNow();
+			for (ZipFile zip : archives)
+			{
+				try
+				{
+					zip.close();
+				}
+				catch (IOException ex)
+				{
+					Logger.log.warn("Unable to close " + zip.getName(), ex);
+				}
+			}
+		}
+		printSummary(jobs.size(), System.currentTimeMillis() - start);
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Add a job for each .owl entry of a zip archive, to be written to a
+	 * subdirectory named after the archive. An archive that can't be opened is a failure.
+	 */
+	private void addArchive(File f, List<Job> jobs, List<ZipFile> archives)
+	{
+		ZipFile zip;
+		try
+		{
+			zip = new ZipFile(f);
+		}
+		catch (IOException ex)
+		{
+			failures.add(f.getName() + ": " + ex);
+			return;
+		}
+		archives.add(zip);
+		File dir = new File(outDir, FileUtils.removeExtension(f.getName()));
+		dir.mkdirs();
+		for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); )
+		{
+			ZipEntry entry = e.nextElement();
+			String name = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+			if (entry.isDirectory() || !name.toLowerCase().endsWith(direction.from)) continue;
+			jobs.add(new Job(f, zip, entry, new File(dir, outputName(name))));
+		}
+	}
+
+	/** Name of the output file for an input file name */
+	private String outputName(String name)
+	{
+		String result = FileUtils.removeExtension(Compression.stripSuffix(name)) + direction.to;
+		return gzip && direction == Direction.EXPORT ? result + ".gz" : result;
+	}
+
+	private void printSummary(int total, long millis)
+	{
+		double seconds = Math.max(millis, 1) / 1000.0;
+		System.out.println();
+		System.out.println("Converted " + converted.get() + " of " + total + " files in " +
+				String.format("%.1f", seconds) + " s on " + threads + " threads");
+		System.out.println(String.format("Throughput: %.2f files/s, %.2f MB/s",
+				converted.get() / seconds, (bytesIn.get() / (1024.0 * 1024.0)) / seconds));
+		System.out.println("Peak heap use: " + (peakHeapUsed() >> 20) + " MB");
+		System.out.println("Failures: " + failures.size());
+		for (String f : failures) System.out.println("  " + f);
+	}
+
+	/** Sum of the peak use of all heap memory pools */
+	private static long peakHeapUsed()
+	{
+		long result = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+			{
+				result += pool.getPeakUsage().getUsed();
+			}
+		}
+		return result;
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: BatchConverter [-threads n] [-timeout seconds] [-stream] [-gzip] import|export <input dir> <output dir>");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		long timeout = 600;
+		boolean stream = false;
+		boolean gzip = false;
+		List<String> rest = new ArrayList<String>();
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if ("-threads".equals(args[i])) threads = Integer.parseInt(args[++i]);
+				else if ("-timeout".equals(args[i])) timeout = Long.parseLong(args[++i]);
+				else if ("-stream".equals(args[i])) stream = true;
+				else if ("-gzip".equals(args[i])) gzip = true;
+				else rest.add(args[i]);
+			}
+		}
+		catch (RuntimeException ex)
+		{
+			usage();
+		}
+		if (rest.size() != 3) usage();
+		Direction direction = null;
+		try
+		{
+			direction = Direction.valueOf(rest.get(0).toUpperCase());
+		}
+		catch (IllegalArgumentException ex)
+		{
+			usage();
+		}
+
+		MIMShapes.registerShapes();
+		BatchConverter converter = new BatchConverter(direction, new File(rest.get(2)));
+		converter.setThreads(threads);
+		converter.setTimeout(timeout, TimeUnit.SECONDS);
+		converter.setStream(stream);
+		converter.setGzip(gzip);
+		boolean ok = converter.run(new File(rest.get(1)));
+		System.exit(ok ? 0 : 1);
+	}
+}
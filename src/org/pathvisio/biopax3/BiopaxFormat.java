@@ -18,13 +18,36 @@ package org.pathvisio.biopax3;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
+import javax.swing.SwingUtilities;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
 import org.jdom.JDOMException;
 import org.pathvisio.biopax3.exporter.ExportHelper;
+import org.pathvisio.biopax3.importer.EntityCollapse;
 import org.pathvisio.biopax3.importer.ImportHelper;
+import org.pathvisio.biopax3.importer.PathwayScanner;
+import org.pathvisio.biopax3.importer.PathwayScanner.PathwayInfo;
+import org.pathvisio.biopax3.importer.ReaderBackend;
+import org.pathvisio.biopax3.importer.ReplicationPolicy;
+import org.pathvisio.biopax3.importer.XrefNormalizer;
+import org.pathvisio.core.debug.Logger;
 import org.pathvisio.core.model.AbstractPathwayFormat;
 import org.pathvisio.core.model.ConverterException;
 import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.preferences.GlobalPreference;
+import org.pathvisio.core.util.ProgressKeeper;
+import org.pathvisio.desktop.PvDesktop;
+import org.pathvisio.gui.ProgressDialog;
 
 /**
  * 
@@ -46,11 +69,19 @@ public class BiopaxFormat extends AbstractPathwayFormat
 		}
 	}
 
-	private final String[] EXTENSIONS = new String[] { "owl" }; 
+	/** 
+	 * Compressed files are imported too, see {@link org.pathvisio.biopax3.importer.Compression}.
+	 * Only compressed .owl files are claimed, not every gzip or zip file.
+	 */
+	private static final String[] IMPORT_EXTENSIONS = new String[] { "owl", "owl.gz", "owl.zip" }; 
+	/** Export can gzip the file, but not write a zip archive */
+	private static final String[] EXPORT_EXTENSIONS = new String[] { "owl", "owl.gz" }; 
+
+	private final String[] extensions;
 
 	public String[] getExtensions() 
 	{
-		return EXTENSIONS;
+		return extensions;
 	}
 
 	public String getName() 
@@ -58,35 +89,189 @@ public class BiopaxFormat extends AbstractPathwayFormat
 		return "BioPAX Level 3";
 	}
 
+	private final PvDesktop desktop;
+	
+	/**
+	 * Create the format for headless use: files with several pathways
+	 * are imported as a whole.
+	 */
+	public BiopaxFormat()
+	{
+		this(null);
+	}
+	
+	/**
+	 * @param desktop when not null, the user is asked which pathway to import
+	 * from files that contain more than one.
+	 */
+	public BiopaxFormat(PvDesktop desktop)
+	{
+		this(desktop, IMPORT_EXTENSIONS);
+	}
+	
+	private BiopaxFormat(PvDesktop desktop, String[] extensions)
+	{
+		this.desktop = desktop;
+		this.extensions = extensions;
+	}
+	
+	/**
+	 * Create the format to register as exporter. It offers only the 
+	 * extensions that can be written, so no zip archives.
+	 */
+	public static BiopaxFormat createExporter()
+	{
+		return new BiopaxFormat(null, EXPORT_EXTENSIONS);
+	}
+	
 	public Pathway doImport(File file) throws ConverterException 
+	{
+		if (desktop == null) return doImport(file, null, null);
+		return doImportWithDialog(file, choosePathway(file));
+	}
+	
+	/**
+	 * Import behind a progress dialog with a cancel button. Works both when
+	 * called on the event dispatch thread and on a worker thread.
+	 */
+	private Pathway doImportWithDialog(final File file, final String pathwayId) throws ConverterException
+	{
+		final ProgressKeeper pk = new ProgressKeeper(100);
+		final ProgressDialog dialog = new ProgressDialog(desktop.getFrame(), 
+				"Importing " + file.getName(), pk, true, true);
+		final Pathway[] result = new Pathway[1];
+		final ConverterException[] error = new ConverterException[1];
+		Runnable work = new Runnable() {
+			public void run() {
+				try {
+					result[0] = doImport(file, pathwayId, pk);
+				} catch (ConverterException e) {
+					error[0] = e;
+				} finally {
+					// queued after the dialog is shown, so it is always closed
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							pk.finished();
+						}
+					});
+				}
+			}
+		};
+		if (SwingUtilities.isEventDispatchThread()) {
+			Thread worker = new Thread(work, "BioPAX import");
+			worker.start();
+			// modal, returns when the import is finished
+			dialog.setVisible(true);
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				throw new ConverterException (e);
+			}
+		} else {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					dialog.setVisible(true);
+				}
+			});
+			work.run();
+		}
+		if (error[0] != null) throw error[0];
+		return result[0];
+	}
+	
+	/**
+	 * Import a BioPAX file, reporting progress to the given progress keeper.
+	 * @param progress progress keeper, or null. If it is cancelled, the import
+	 * stops and a ConverterException is thrown.
+	 */
+	public Pathway doImport(File file, ProgressKeeper progress) throws ConverterException 
+	{
+		return doImport(file, null, progress);
+	}
+	
+	/**
+	 * Let the user choose a pathway, if the file has more than one. The file is
+	 * only scanned, see {@link PathwayScanner}, so the choice is offered before the full read.
+	 * @return the id of the chosen pathway, or null to import the whole file, also when it can't be scanned.
+	 * @throws ConverterException when the user cancels the dialog.
+	 */
+	private String choosePathway(File file) throws ConverterException
+	{
+		final List<PathwayInfo> infos;
+		try {
+			infos = PathwayScanner.scan(file);
+		} catch (IOException e) {
+			// the full import may still read it, or report a better error
+			Logger.log.warn("Could not scan " + file + " for pathways, importing all of it", e);
+			return null;
+		}
+		if (infos.size() <= 1) return null;
+		
+		final PathwayInfo[] choice = new PathwayInfo[1];
+		Runnable ask = new Runnable() {
+			public void run() {
+				SelectPathwayDialog dialog = new SelectPathwayDialog(desktop, infos);
+				dialog.setVisible(true);
+				choice[0] = dialog.getSelectedInfo();
+			}
+		};
+		try {
+			if (SwingUtilities.isEventDispatchThread()) ask.run();
+			else SwingUtilities.invokeAndWait(ask);
+		} catch (InterruptedException e) {
+			throw new ConverterException (e);
+		} catch (InvocationTargetException e) {
+			throw new ConverterException (e);
+		}
+		if (choice[0] == null) throw new ConverterException ("Import of " + file.getName() + " was cancelled");
+		return choice[0].getRdfId();
+	}
+	
+	/**
+	 * Import a single pathway from a BioPAX file.
+	 * @param pathwayId id of the pathway to convert, as reported by {@link PathwayScanner},
+	 * or null to convert the whole file into a single pathway.
+	 * @param progress progress keeper, or null. If it is cancelled, the import
+	 * stops and a ConverterException is thrown.
+	 */
+	public Pathway doImport(File file, String pathwayId, ProgressKeeper progress) throws ConverterException 
 	{
 		Pathway result = null;
-		System.out.println("IMPORT!!");
 		try {
-			ImportHelper bpf = new ImportHelper(file);
-			System.out.println(bpf);
-
-			/*
-			List<org.biopax.paxtools.model.level3.Pathway> pathway_list = bpf.getPathways(); 
-			//TODO: what if pathway list size is 0?
-			if (pathway_list.size() == 1)
+			ImportSettings settings = new ImportSettings();
+			
+			ImportCache cache = ImportCache.fromPreferences();
+			String cacheKey = null;
+			if (cache != null)
 			{
-				result = bpf.convert().get(0);
+				cacheKey = cache.getKey(file, settings.getKey() +
+						(pathwayId == null ? "" : ";pathway=" + pathwayId));
+				result = cache.get(cacheKey);
+				if (result != null) return result;
 			}
-			else
+			
+			ImportHelper bpf = new ImportHelper(file, settings.reader, progress);
+			try
 			{
-				SelectPathwayRunnable runnable = new SelectPathwayRunnable(pathway_list);
-				try {
-					SwingUtilities.invokeAndWait(runnable);
-				} catch (InterruptedException e) {
-					throw new ConverterException(e); 
-				} catch (InvocationTargetException e) {
-					throw new ConverterException(e);
+				settings.configure(bpf);
+				
+				if (pathwayId == null)
+				{
+					result = bpf.convertAll();
+				}
+				else
+				{
+					org.biopax.paxtools.model.level3.Pathway bpPathway = bpf.findPathway(pathwayId);
+					if (bpPathway == null) throw new ConverterException ("Pathway " + pathwayId + " not found in " + file.getName());
+					result = bpf.convertPathway(bpPathway);
 				}
-				result = bpf.simple_convert(runnable.selection);
 			}
-			*/
-			result = bpf.convertAll();
+			finally
+			{
+				bpf.close();
+			}
+			
+			if (cache != null) cache.put(cacheKey, result);
 		} 
 		catch (JDOMException e) 
 		{
@@ -96,7 +281,202 @@ public class BiopaxFormat extends AbstractPathwayFormat
 		{
 			throw new ConverterException (e);
 		}
+		catch (CancellationException e)
+		{
+			throw new ConverterException (e);
+		}
 		return result;
 	}
 
+	/**
+	 * Import a BioPAX document from a stream, without writing it to a file first.
+	 * Unlike {@link #doImport(File, ProgressKeeper)}, the import cache is not used.
+	 * @param name name of the document, the pathway is named after it
+	 * @param progress progress keeper, or null
+	 */
+	public Pathway doImport(InputStream in, String name, ProgressKeeper progress) throws ConverterException
+	{
+		try {
+			ImportSettings settings = new ImportSettings();
+			ImportHelper bpf = new ImportHelper(in, name, settings.reader, progress);
+			try {
+				settings.configure(bpf);
+				return bpf.convertAll();
+			} finally {
+				bpf.close();
+			}
+		} catch (JDOMException e) {
+			throw new ConverterException (e);
+		} catch (IOException e) {
+			throw new ConverterException (e);
+		} catch (CancellationException e) {
+			throw new ConverterException (e);
+		}
+	}
+	
+	/**
+	 * Import a BioPAX document from the bytes between the position and limit of the buffer.
+	 * Unlike {@link #doImport(File, ProgressKeeper)}, the import cache is not used.
+	 * @param name name of the document, the pathway is named after it
+	 * @param progress progress keeper, or null
+	 */
+	public Pathway doImport(ByteBuffer buffer, String name, ProgressKeeper progress) throws ConverterException
+	{
+		try {
+			ImportSettings settings = new ImportSettings();
+			ImportHelper bpf = new ImportHelper(buffer, name, settings.reader, progress);
+			try {
+				settings.configure(bpf);
+				return bpf.convertAll();
+			} finally {
+				bpf.close();
+			}
+		} catch (JDOMException e) {
+			throw new ConverterException (e);
+		} catch (IOException e) {
+			throw new ConverterException (e);
+		} catch (CancellationException e) {
+			throw new ConverterException (e);
+		}
+	}
+	
+	/**
+	 * Export a pathway to streams instead of files.
+	 * @param out stream for the BioPAX document
+	 * @param bpssOut stream for the BioPAX style sheet, or null to leave it out
+	 */
+	public void doExport(OutputStream out, OutputStream bpssOut, Pathway pathway) throws ConverterException
+	{
+		try {
+			ExportHelper helper = new ExportHelper(pathway);
+			helper.export(out, bpssOut);
+		} catch (IOException e) {
+			throw new ConverterException (e);
+		}
+	}
+	
+	/**
+	 * The conversion options from the preferences, read once per import so that
+	 * the cache key and the conversion always agree, even when the preferences
+	 * change during the import.
+	 */
+	private static class ImportSettings
+	{
+		final ReaderBackend reader;
+		final boolean compactComments;
+		final boolean flyweightComplexes;
+		final boolean bundleControls;
+		final EntityCollapse entityCollapse;
+		final boolean mergeDuplicates;
+		final int replicateDegree;
+		final boolean replicateCurrency;
+		final XrefNormalizer normalizer;
+		/** mapping database and targets of the normalizer, null if there is none */
+		final String mapping;
+		
+		ImportSettings()
+		{
+			reader = ReaderBackend.fromName(BiopaxPreference.BIOPAX_READER.getValue());
+			compactComments = Boolean.parseBoolean(BiopaxPreference.BIOPAX_COMPACT_COMMENTS.getValue());
+			flyweightComplexes = Boolean.parseBoolean(BiopaxPreference.BIOPAX_FLYWEIGHT_COMPLEXES.getValue());
+			bundleControls = Boolean.parseBoolean(BiopaxPreference.BIOPAX_BUNDLE_CONTROLS.getValue());
+			entityCollapse = EntityCollapse.fromName(BiopaxPreference.BIOPAX_ENTITY_COLLAPSE.getValue());
+			mergeDuplicates = Boolean.parseBoolean(BiopaxPreference.BIOPAX_MERGE_DUPLICATES.getValue());
+			replicateDegree = parseInt(BiopaxPreference.BIOPAX_REPLICATE_DEGREE.getValue(), 0);
+			replicateCurrency = Boolean.parseBoolean(BiopaxPreference.BIOPAX_REPLICATE_CURRENCY.getValue());
+			// the normalizer and its settings are replaced together, under the same lock
+			synchronized (BiopaxFormat.class)
+			{
+				normalizer = getXrefNormalizer();
+				mapping = normalizer == null ? null : normalizerSettings;
+			}
+		}
+		
+		/**
+		 * @return the options that change the result of a conversion, for the import cache.
+		 */
+		String getKey()
+		{
+			return "reader=" + reader +
+					";compact=" + compactComments +
+					";flyweight=" + flyweightComplexes +
+					";bundle=" + bundleControls +
+					";collapse=" + entityCollapse +
+					";merge=" + mergeDuplicates +
+					";replicate=" + replicateDegree + "," + replicateCurrency +
+					(mapping == null ? "" : ";mapping=" + mapping);
+		}
+		
+		void configure(ImportHelper bpf)
+		{
+			bpf.setCompactComments(compactComments);
+			bpf.setFlyweightComplexes(flyweightComplexes);
+			bpf.setBundleControls(bundleControls);
+			bpf.setEntityCollapse(entityCollapse);
+			bpf.setMergeDuplicates(mergeDuplicates);
+			if (replicateDegree > 0 || replicateCurrency)
+			{
+				bpf.setReplicationPolicy(new ReplicationPolicy(replicateDegree, replicateCurrency ?
+						ReplicationPolicy.CURRENCY_METABOLITES : Collections.<String>emptySet()));
+			}
+			bpf.setXrefNormalizer(normalizer);
+		}
+	}
+
+	private static int parseInt(String value, int defaultValue)
+	{
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static XrefNormalizer normalizer;
+	private static String normalizerSettings;
+	
+	/**
+	 * The normalizer configured in the preferences, shared between imports
+	 * so that the mapping database is opened only once.
+	 * @return the normalizer, or null if no mapping database is configured
+	 * or it can't be opened.
+	 */
+	static synchronized XrefNormalizer getXrefNormalizer()
+	{
+		String db = BiopaxPreference.BIOPAX_MAPPING_DB.getValue();
+		String targets = BiopaxPreference.BIOPAX_MAPPING_TARGETS.getValue();
+		if (db == null || db.trim().length() == 0) return null;
+		
+		String settings = db + "\n" + targets;
+		if (!settings.equals(normalizerSettings))
+		{
+			closeXrefNormalizer();
+			List<DataSource> dataSources = new ArrayList<DataSource>();
+			for (String code : targets.split(","))
+			{
+				if (code.trim().length() > 0) dataSources.add(DataSource.getBySystemCode(code.trim()));
+			}
+			DataSource[] targetArray = dataSources.toArray(new DataSource[dataSources.size()]);
+			File cacheFile = XrefNormalizer.getCacheFile(GlobalPreference.getApplicationDir(), db.trim(), targetArray);
+			try {
+				normalizer = XrefNormalizer.connect(db.trim(), cacheFile, targetArray);
+			} catch (IDMapperException e) {
+				// not worth failing the import for, and not worth retrying for every import
+				Logger.log.warn("Unable to open mapping database " + db + ", xrefs will not be normalized", e);
+				normalizer = null;
+			}
+			normalizerSettings = settings;
+		}
+		return normalizer;
+	}
+	
+	/**
+	 * Close the mapping database of the shared normalizer, if it is open.
+	 */
+	static synchronized void closeXrefNormalizer()
+	{
+		if (normalizer != null) normalizer.close();
+		normalizer = null;
+		normalizerSettings = null;
+	}
 }	
@@ -34,11 +34,12 @@ public class BiopaxPlugin implements Plugin
 {	
 	public void init(PvDesktop desktop) 
 	{
-		BiopaxFormat format = new BiopaxFormat();
-		
-		desktop.getSwingEngine().getEngine().addPathwayExporter(format);
-		desktop.getSwingEngine().getEngine().addPathwayImporter(format);
+		desktop.getSwingEngine().getEngine().addPathwayExporter(BiopaxFormat.createExporter());
+		desktop.getSwingEngine().getEngine().addPathwayImporter(new BiopaxFormat(desktop));
 	}
 
-	public void done() {}
+	public void done() 
+	{
+		BiopaxFormat.closeXrefNormalizer();
+	}
 }
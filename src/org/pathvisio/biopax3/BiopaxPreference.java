@@ -0,0 +1,77 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3;
+
+import org.pathvisio.core.preferences.Preference;
+import org.pathvisio.core.preferences.PreferenceManager;
+
+/**
+ * Preferences for the BioPAX plugin, stored in the PathVisio preference file.
+ */
+public enum BiopaxPreference implements Preference
+{
+	/** Name of the {@link org.pathvisio.biopax3.importer.ReaderBackend} used for import. */
+	BIOPAX_READER ("STAX"),
+	/** Store imported pathways in the {@link ImportCache}, off by default because it writes to the PathVisio directory */
+	BIOPAX_CACHE_ENABLED (Boolean.toString(false)),
+	/** Directory of the {@link ImportCache}, empty for the default in the PathVisio directory */
+	BIOPAX_CACHE_DIR (""),
+	/** Maximum size of the {@link ImportCache} in megabytes */
+	BIOPAX_CACHE_MAX_MB ("512"),
+	/** Import with {@link org.pathvisio.biopax3.importer.ImportHelper#setCompactComments(boolean)} */
+	BIOPAX_COMPACT_COMMENTS (Boolean.toString(false)),
+	/** Import with {@link org.pathvisio.biopax3.importer.ImportHelper#setFlyweightComplexes(boolean)} */
+	BIOPAX_FLYWEIGHT_COMPLEXES (Boolean.toString(false)),
+	/** Import with {@link org.pathvisio.biopax3.importer.ImportHelper#setBundleControls(boolean)} */
+	BIOPAX_BUNDLE_CONTROLS (Boolean.toString(false)),
+	/** Name of the {@link org.pathvisio.biopax3.importer.EntityCollapse} mode used for import */
+	BIOPAX_ENTITY_COLLAPSE ("NONE"),
+	/** Import with {@link org.pathvisio.biopax3.importer.ImportHelper#setMergeDuplicates(boolean)} */
+	BIOPAX_MERGE_DUPLICATES (Boolean.toString(false)),
+	/** Replicate entities taking part in at least this many interactions, 0 to disable, see {@link org.pathvisio.biopax3.importer.ReplicationPolicy} */
+	BIOPAX_REPLICATE_DEGREE ("0"),
+	/** Replicate {@link org.pathvisio.biopax3.importer.ReplicationPolicy#CURRENCY_METABOLITES} */
+	BIOPAX_REPLICATE_CURRENCY (Boolean.toString(false)),
+	/** BridgeDb connection string or Derby file used to normalize xrefs, empty to keep xrefs as they are */
+	BIOPAX_MAPPING_DB (""),
+	/** Comma separated system codes of the preferred DataSources, see {@link org.pathvisio.biopax3.importer.XrefNormalizer} */
+	BIOPAX_MAPPING_TARGETS ("En,Ce"),
+	;
+	
+	private final String defaultValue;
+	
+	BiopaxPreference(String defaultValue)
+	{
+		this.defaultValue = defaultValue;
+	}
+	
+	public String getDefault()
+	{
+		return defaultValue;
+	}
+	
+	/**
+	 * Get the current value of this preference, or the default 
+	 * when PathVisio preferences are not initialized (e.g. in headless use).
+	 */
+	public String getValue()
+	{
+		PreferenceManager prefs = PreferenceManager.getCurrent();
+		if (prefs == null) return defaultValue;
+		return prefs.get(this);
+	}
+}
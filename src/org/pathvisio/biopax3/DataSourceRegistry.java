@@ -0,0 +1,227 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bridgedb.DataSource;
+
+/**
+ * Maps BioPAX xref db names to BridgeDb DataSources and back, for both
+ * the importer and the exporter.
+ * <p>
+ * Lookups ignore case and whitespace, so "KEGG compound", "kegg compound" and 
+ * "KEGGCompound" are the same database. The table is compiled once from the 
+ * registered DataSources; looking up a known name is a single probe in an open 
+ * addressing table and does not allocate. Unknown names are resolved with 
+ * {@link DataSource#getByFullName(String)}, as before, and then added to the table,
+ * also when they are not found, until new DataSources are registered.
+ */
+public final class DataSourceRegistry 
+{
+	private static final DataSourceRegistry INSTANCE = new DataSourceRegistry();
+	
+	/**
+	 * The shared registry.
+	 */
+	public static DataSourceRegistry getInstance()
+	{
+		return INSTANCE;
+	}
+	
+	/** BioPAX db names that differ from the BridgeDb full name */
+	private static final String[][] ALIASES = new String[][] {
+		{ "uniprot", "S" },
+		{ "uniprot knowledgebase", "S" },
+		{ "uniprotkb", "S" },
+		{ "kegg compound", "Ck" },
+		{ "ncbi gene", "L" },
+	};
+	
+	/** Database names for export, where they differ from the BridgeDb full name */
+	private static final String[][] MIRIAM_NAMES = new String[][] {
+		{ "S", "Uniprot" },
+	};
+	
+	/**
+	 * Immutable lookup table, replaced as a whole when names are added.
+	 */
+	private static final class Table
+	{
+		final Map<String, DataSource> entries;
+		final String[] keys;
+		/** null for names that are known to have no DataSource */
+		final DataSource[] values;
+		final Map<DataSource, String> miriamNames;
+		final int dataSourceCount;
+		
+		Table(Map<String, DataSource> entries, Map<DataSource, String> miriamNames, int dataSourceCount)
+		{
+			this.entries = entries;
+			int capacity = 16;
+			while (capacity < entries.size() * 2) capacity <<= 1;
+			keys = new String[capacity];
+			values = new DataSource[capacity];
+			for (Map.Entry<String, DataSource> e : entries.entrySet())
+			{
+				int slot = hash(e.getKey()) & (capacity - 1);
+				while (keys[slot] != null) slot = (slot + 1) & (capacity - 1);
+				keys[slot] = e.getKey();
+				values[slot] = e.getValue();
+			}
+			this.miriamNames = miriamNames;
+			this.dataSourceCount = dataSourceCount;
+		}
+		
+		/** @return the slot of db, or -1 if it is not in the table */
+		int find(String db)
+		{
+			int mask = keys.length - 1;
+			int slot = hash(db) & mask;
+			while (keys[slot] != null)
+			{
+				if (normalizedEquals(keys[slot], db)) return slot;
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+		
+		/** A copy of this table with one more entry, without scanning the registered DataSources again */
+		Table with(String key, DataSource value, int dataSourceCount)
+		{
+			Map<String, DataSource> copy = new HashMap<String, DataSource>(entries);
+			copy.put(key, value);
+			return new Table(copy, miriamNames, dataSourceCount);
+		}
+	}
+	
+	private volatile Table table;
+	/** Names added after a lookup miss, kept when the table is recompiled */
+	private final Map<String, DataSource> added = new HashMap<String, DataSource>();
+	
+	private DataSourceRegistry()
+	{
+		table = compile();
+	}
+	
+	/**
+	 * Get the DataSource for a BioPAX db name.
+	 * @return the DataSource, or null if db is null or empty.
+	 */
+	public DataSource getDataSource(String db)
+	{
+		if (db == null) return null;
+		Table t = table;
+		int slot = t.find(db);
+		if (slot >= 0)
+		{
+			DataSource result = t.values[slot];
+			// a miss is only final until new DataSources are registered
+			if (result != null || DataSource.getDataSources().size() == t.dataSourceCount) return result;
+		}
+		return addName(db);
+	}
+	
+	/**
+	 * Get the database name to use in BioPAX for the given DataSource.
+	 * //TODO: This should be functionality of BridgeDb.
+	 */
+	public String getMiriamName(DataSource ds)
+	{
+		String result = table.miriamNames.get(ds);
+		return result != null ? result : ds.getFullName();
+	}
+	
+	private synchronized DataSource addName(String db)
+	{
+		String key = normalize(db);
+		if (key.length() == 0) return null;
+		
+		// DataSources may have been registered since the table was compiled,
+		// compiling again also forgets the names that were not found
+		if (DataSource.getDataSources().size() != table.dataSourceCount) table = compile();
+		int slot = table.find(db);
+		if (slot >= 0) return table.values[slot];
+		
+		DataSource result = DataSource.getByFullName(db);
+		if (result != null) added.put(key, result);
+		table = table.with(key, result, DataSource.getDataSources().size());
+		return result;
+	}
+	
+	private synchronized Table compile()
+	{
+		Map<String, DataSource> entries = new HashMap<String, DataSource>();
+		for (DataSource ds : DataSource.getDataSources())
+		{
+			if (ds.getFullName() != null) entries.put(normalize(ds.getFullName()), ds);
+		}
+		for (String[] alias : ALIASES)
+		{
+			entries.put(normalize(alias[0]), DataSource.getBySystemCode(alias[1]));
+		}
+		entries.putAll(added);
+		
+		Map<DataSource, String> miriamNames = new HashMap<DataSource, String>();
+		for (String[] name : MIRIAM_NAMES)
+		{
+			miriamNames.put(DataSource.getBySystemCode(name[0]), name[1]);
+		}
+		// getBySystemCode may have registered new DataSources above
+		return new Table(entries, miriamNames, DataSource.getDataSources().size());
+	}
+	
+	/** Lowercase, without whitespace */
+	static String normalize(String s)
+	{
+		StringBuilder result = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (!Character.isWhitespace(c)) result.append(Character.toLowerCase(c));
+		}
+		return result.toString();
+	}
+	
+	/** Hash of the normalized form of s, without creating it */
+	static int hash(String s)
+	{
+		int h = 0;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (!Character.isWhitespace(c)) h = 31 * h + Character.toLowerCase(c);
+		}
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/** Compare an already normalized key with the normalized form of s */
+	static boolean normalizedEquals(String key, String s)
+	{
+		int k = 0;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (Character.isWhitespace(c)) continue;
+			if (k >= key.length() || key.charAt(k) != Character.toLowerCase(c)) return false;
+			k++;
+		}
+		return k == key.length();
+	}
+}
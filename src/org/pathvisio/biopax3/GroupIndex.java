@@ -0,0 +1,90 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+
+/**
+ * Group id to group members, for the importer and exporter.
+ * <p>
+ * {@link Pathway#getGroupElements(String)} looks at every element of the
+ * pathway, so calling it for every group is quadratic in the size of the pathway.
+ * This index is built once, or kept up to date while groups are created,
+ * and answers the same question in constant time.
+ */
+public class GroupIndex
+{
+	private final Map<String, List<PathwayElement>> members = new HashMap<String, List<PathwayElement>>();
+
+	/**
+	 * Index the groups of an existing pathway, in a single pass.
+	 */
+	public static GroupIndex build(Pathway pathway)
+	{
+		GroupIndex result = new GroupIndex();
+		for (PathwayElement elt : pathway.getDataObjects())
+		{
+			if (elt.getGroupRef() != null) result.add(elt.getGroupRef(), elt);
+		}
+		return result;
+	}
+
+	/**
+	 * Set the group ref of the element, and update the index.
+	 * The element is removed from the group it was in before, if any.
+	 */
+	public void setGroupRef(PathwayElement elt, String groupId)
+	{
+		String current = elt.getGroupRef();
+		if (current != null)
+		{
+			List<PathwayElement> list = members.get(current);
+			if (list != null) list.remove(elt);
+		}
+		elt.setGroupRef(groupId);
+		if (groupId != null) add(groupId, elt);
+	}
+
+	private void add(String groupId, PathwayElement elt)
+	{
+		List<PathwayElement> list = members.get(groupId);
+		if (list == null)
+		{
+			list = new ArrayList<PathwayElement>();
+			members.put(groupId, list);
+		}
+		list.add(elt);
+	}
+
+	/**
+	 * The elements in the given group, in the order they were added.
+	 * Empty if there is no such group.
+	 */
+	public List<PathwayElement> getGroupElements(String groupId)
+	{
+		List<PathwayElement> list = groupId == null ? null : members.get(groupId);
+		if (list == null) return Collections.emptyList();
+		return Collections.unmodifiableList(list);
+	}
+}
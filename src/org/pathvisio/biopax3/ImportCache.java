@@ -0,0 +1,215 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.preferences.GlobalPreference;
+
+/**
+ * On-disk cache of imported pathways.
+ * <p>
+ * Converted pathways are stored as GPML, under a hash of the path, length and
+ * modification time of the BioPAX file, the import settings and {@link #CONVERTER_VERSION}.
+ * Opening the same file again only costs reading the GPML. When the cache grows beyond
+ * its maximum size, the least recently used entries are removed.
+ * <p>
+ * The cache is disabled by default, see {@link BiopaxPreference#BIOPAX_CACHE_ENABLED}.
+ */
+public class ImportCache 
+{
+	/**
+	 * Part of every cache key. Increase this whenever a change to the importer
+	 * changes the resulting GPML, so that stale entries are no longer used.
+	 */
+	public static final String CONVERTER_VERSION = "5";
+	
+	private static final String EXTENSION = ".gpml";
+	
+	private final File dir;
+	private final long maxBytes;
+	
+	/**
+	 * @param dir Directory to store cached pathways in, created if needed.
+	 * @param maxBytes Maximum total size of the cached GPML files.
+	 */
+	public ImportCache(File dir, long maxBytes)
+	{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Create the cache configured in the plugin preferences.
+	 * @return the cache, or null if caching is disabled.
+	 */
+	public static ImportCache fromPreferences()
+	{
+		if (!Boolean.parseBoolean(BiopaxPreference.BIOPAX_CACHE_ENABLED.getValue())) return null;
+		String dirName = BiopaxPreference.BIOPAX_CACHE_DIR.getValue();
+		File dir = (dirName == null || dirName.length() == 0) ?
+				new File(GlobalPreference.getApplicationDir(), "biopax-cache") : new File(dirName);
+		long maxMb;
+		try
+		{
+			maxMb = Long.parseLong(BiopaxPreference.BIOPAX_CACHE_MAX_MB.getValue());
+		}
+		catch (NumberFormatException ex)
+		{
+			maxMb = Long.parseLong(BiopaxPreference.BIOPAX_CACHE_MAX_MB.getDefault());
+		}
+		return new ImportCache(dir, maxMb << 20);
+	}
+	
+	/**
+	 * Calculate the cache key for a BioPAX file: a SHA-1 hash of the converter
+	 * version and the path, length and modification time of the file.
+	 */
+	public String getKey(File biopaxFile) throws IOException
+	{
+		return getKey(biopaxFile, "");
+	}
+	
+	/**
+	 * Calculate the cache key for a BioPAX file imported with non-default settings.
+	 * The file contents are not read, a file that is changed in place gets
+	 * a new modification time and therefore a new key.
+	 * @param settings Describes all import settings that affect the resulting GPML,
+	 * including the reader backend.
+	 */
+	public String getKey(File biopaxFile, String settings) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException("SHA-1 not available");
+		}
+		digest.update((CONVERTER_VERSION + "\n" + settings + "\n" + 
+				biopaxFile.getCanonicalPath() + "\n" + 
+				biopaxFile.length() + "\n" + 
+				biopaxFile.lastModified()).getBytes("UTF-8"));
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			result.append(Character.forDigit((b >> 4) & 0xF, 16));
+			result.append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+	
+	/**
+	 * Get a cached pathway.
+	 * @return the pathway, or null if there is no (readable) entry for this key.
+	 */
+	public Pathway get(String key)
+	{
+		File f = getFile(key);
+		if (!f.exists()) return null;
+		try
+		{
+			Pathway result = new Pathway();
+			result.readFromXml(f, false);
+			result.setSourceFile(null);
+			f.setLastModified(System.currentTimeMillis());
+			Logger.log.info("Using cached import " + f);
+			return result;
+		}
+		catch (ConverterException ex)
+		{
+			Logger.log.warn("Discarding unreadable cache entry " + f, ex);
+			f.delete();
+			return null;
+		}
+	}
+	
+	/**
+	 * Store a pathway in the cache, and evict old entries if the cache is too large.
+	 * Failures are logged, they never affect the import itself.
+	 */
+	public void put(String key, Pathway pathway)
+	{
+		if (!dir.exists() && !dir.mkdirs())
+		{
+			Logger.log.warn("Could not create import cache " + dir);
+			return;
+		}
+		File target = getFile(key);
+		File tmp = new File(dir, key + ".tmp");
+		try
+		{
+			pathway.writeToXml(tmp, false);
+			// writeToXml points the pathway to the cache file, it should stay unsaved
+			pathway.setSourceFile(null);
+			if (!tmp.renameTo(target))
+			{
+				target.delete();
+				if (!tmp.renameTo(target)) throw new ConverterException("Could not rename " + tmp);
+			}
+		}
+		catch (ConverterException ex)
+		{
+			Logger.log.warn("Could not write cache entry " + target, ex);
+			tmp.delete();
+			return;
+		}
+		evict();
+	}
+	
+	private File getFile(String key)
+	{
+		return new File(dir, key + EXTENSION);
+	}
+	
+	/**
+	 * Remove the least recently used entries until the cache is within its size limit.
+	 */
+	void evict()
+	{
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		long total = 0;
+		for (File f : files) if (f.getName().endsWith(EXTENSION)) total += f.length();
+		if (total <= maxBytes) return;
+		
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long la = a.lastModified();
+				long lb = b.lastModified();
+				return la < lb ? -1 : (la == lb ? 0 : 1);
+			}
+		});
+		for (File f : files)
+		{
+			if (total <= maxBytes) break;
+			if (!f.getName().endsWith(EXTENSION)) continue;
+			long size = f.length();
+			if (f.delete()) total -= size;
+		}
+	}
+}
@@ -22,6 +22,8 @@ import java.util.List;
 import javax.swing.JComboBox;
 import javax.swing.JPanel;
 
+import org.pathvisio.biopax3.importer.PathwayScanner;
+import org.pathvisio.biopax3.importer.PathwayScanner.PathwayInfo;
 import org.pathvisio.desktop.PvDesktop;
 import org.pathvisio.gui.dialogs.OkCancelDialog;
 
@@ -34,6 +36,7 @@ import org.pathvisio.gui.dialogs.OkCancelDialog;
 public class SelectPathwayDialog extends OkCancelDialog {
 	private JComboBox cbPathwaylist;
 	private List<org.biopax.paxtools.model.level3.Pathway> bpPathwayList;
+	private List<PathwayInfo> infoList;
 	
 	public SelectPathwayDialog(List<org.biopax.paxtools.model.level3.Pathway> pwList, PvDesktop desktop){
 		super(desktop.getFrame(), "Open Pathway", desktop.getFrame(), true);
@@ -42,6 +45,23 @@ public class SelectPathwayDialog extends OkCancelDialog {
 		setSize(500, 120);
 	}
 	
+	/**
+	 * Create a dialog from the result of a {@link PathwayScanner}, 
+	 * so it can be shown before the BioPAX file is fully read.
+	 * Use {@link #getSelectedInfo()} to get the choice.
+	 */
+	public SelectPathwayDialog(PvDesktop desktop, List<PathwayInfo> infos){
+		super(desktop.getFrame(), "Open Pathway", desktop.getFrame(), true);
+		this.infoList = infos;
+		String [] pathways = new String [infos.size()];
+		for (int i = 0; i < infos.size(); i++)
+		{
+			pathways[i] = namePicker(infos.get(i));
+		}
+		setDialogComponent(createComboPane(pathways));
+		setSize(500, 120);
+	}
+	
 	public static String namePicker (org.biopax.paxtools.model.level3.Pathway pat)
 	{
 		// first try display name
@@ -62,27 +82,47 @@ public class SelectPathwayDialog extends OkCancelDialog {
 		return result;
 	}
 	
+	public static String namePicker (PathwayInfo info)
+	{
+		if (info.getDisplayName() != null) return info.getDisplayName();
+		if (info.getNames().size() > 0) return info.getNames().get(0);
+		return info.getRdfId();
+	}
+	
 	protected Component createDialogPane(List<org.biopax.paxtools.model.level3.Pathway> pwyList) {
 		String [] pathways = new String [pwyList.size()]; 
-		JPanel panel = new JPanel();	    
 		int i=0;
 	    for (org.biopax.paxtools.model.level3.Pathway pat: pwyList)
 	    {
 	    	pathways[i] = namePicker(pat);
 	    	i++;
 	    }
+	    return createComboPane(pathways);
+	}	
+	
+	private Component createComboPane(String[] pathways) {
+		JPanel panel = new JPanel();	    
 	    cbPathwaylist = new JComboBox(pathways);
 	    panel.add(cbPathwaylist);
 	    return panel;
-	}	
+	}
 	
 	private org.biopax.paxtools.model.level3.Pathway selectedPathway = null;
+	private PathwayInfo selectedInfo = null;
 	
 	public org.biopax.paxtools.model.level3.Pathway getSelected() { return selectedPathway; }
 	
+	/**
+	 * The selected pathway, when the dialog was created from {@link PathwayScanner} results.
+	 * Pass its id to {@link org.pathvisio.biopax3.importer.ImportHelper#findPathway(String)}.
+	 */
+	public PathwayInfo getSelectedInfo() { return selectedInfo; }
+	
 	protected void okPressed()
 	{
-		selectedPathway = bpPathwayList.get(cbPathwaylist.getSelectedIndex());
+		int index = cbPathwaylist.getSelectedIndex();
+		if (bpPathwayList != null) selectedPathway = bpPathwayList.get(index);
+		if (infoList != null) selectedInfo = infoList.get(index);
 		super.okPressed();
 	}
 }
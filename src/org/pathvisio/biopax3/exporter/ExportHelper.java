@@ -21,10 +21,13 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.zip.GZIPOutputStream;
 
 import org.biopax.paxtools.io.SimpleIOHandler;
 import org.biopax.paxtools.model.BioPAXFactory;
@@ -52,6 +55,8 @@ import org.biopax.paxtools.model.level3.UnificationXref;
 import org.bridgedb.DataSource;
 import org.bridgedb.Xref;
 import org.pathvisio.biopax3.BpStyleSheet;
+import org.pathvisio.biopax3.DataSourceRegistry;
+import org.pathvisio.biopax3.GroupIndex;
 import org.pathvisio.core.debug.Logger;
 import org.pathvisio.core.model.GraphLink.GraphRefContainer;
 import org.pathvisio.core.model.GroupStyle;
@@ -91,6 +96,9 @@ public class ExportHelper
 	private BioSource organism = null;
 
 	private final BpStyleSheet bpss = new BpStyleSheet();
+	
+	/** Members of each group in pvPwy, built once when mapping starts */
+	private GroupIndex groups;
 
 	public ExportHelper(Pathway pvPwy)
 	{
@@ -260,23 +268,13 @@ public class ExportHelper
 			bpEr.addXref(createOrGetRelationshipXref(pwyElt.getXref()));
 	}
 	
-	static Map<DataSource, String> miriamNameOverrides = new HashMap<DataSource, String>();
-	
-	static 
-	{
-		miriamNameOverrides.put(DataSource.getBySystemCode("S"), "Uniprot");
-	}
-	
 	/** 
 	 * get MIRIAM name for given DataSource. 
-	 * //TODO: This should be functionality of BridgeDb.
+	 * @see DataSourceRegistry#getMiriamName(DataSource)
 	 */
 	String getMiriamName (DataSource ds)
 	{
-		if (miriamNameOverrides.containsKey(ds)) 
-			return miriamNameOverrides.get(ds);
-		else 
-			return ds.getFullName();
+		return DataSourceRegistry.getInstance().getMiriamName(ds);
 	}
 	
 	/**
@@ -326,7 +324,7 @@ public class ExportHelper
 		String rdf = generateRdfId();
 		Complex bpPe = bpModel.addNew(Complex.class, rdf);
 		bpPe.setDisplayName("Complex " + rdf);
-		for (PathwayElement subElt : pwyElt.getParent().getGroupElements(pwyElt.getGroupId()))
+		for (PathwayElement subElt : groups.getGroupElements(pwyElt.getGroupId()))
 		{
 			PhysicalEntity bpSub = createOrGetPhysicalEntity(subElt);
 			if (bpSub != null) bpPe.addComponent(bpSub);
@@ -415,7 +413,7 @@ public class ExportHelper
 	 */
 	private void mapRelation(PathwayElement pwElm)
 	{
-		Relation r = new Relation(pwElm);
+		Relation r = new Relation(pwElm, groups);
 
 		Set<PhysicalEntity> leftPe = new HashSet<PhysicalEntity>() ;
 		Set<PhysicalEntity> rightPe = new HashSet<PhysicalEntity>() ;
@@ -475,6 +473,7 @@ public class ExportHelper
 	private void mapPathway()
 	{
 		PathwayElement info = pvPwy.getMappInfo();
+		groups = GroupIndex.build(pvPwy);
 
 		bpPwy = bpModel.addNew (org.biopax.paxtools.model.level3.Pathway.class, generateRdfId());
 		transferComments(bpPwy, info);
@@ -490,6 +489,12 @@ public class ExportHelper
 
 		for (PathwayElement pwElm : pvPwy.getDataObjects())
 		{
+			// stop when a batch conversion times out
+			if (Thread.currentThread().isInterrupted())
+			{
+				throw new CancellationException("BioPAX export of " + info.getMapInfoName() + " was interrupted");
+			}
+
 			// is it a gene, protein or metabolite? 
 			if (pwElm.getObjectType() == ObjectType.DATANODE)
 			{
@@ -518,16 +523,66 @@ public class ExportHelper
 		}			
 	}
 
+	/**
+	 * Write the BioPAX document to a file, and optionally the style sheet to a 
+	 * .bpss file next to it. If the file name ends with .gz, both are gzip compressed,
+	 * e.g. pathway.owl.gz and pathway.bpss.gz.
+	 */
 	public void export(File file, boolean doBpSs) throws IOException
 	{
-		exporter.convertToOWL(bpModel, 
-				new BufferedOutputStream(new FileOutputStream(file)));
-		if (doBpSs)
+		boolean gzip = file.getName().toLowerCase().endsWith(".gz");
+		OutputStream out = open(file, gzip);
+		OutputStream ss = null;
+		try
+		{
+			if (doBpSs)
+			{
+				ss = open(getStyleSheetFile(file), gzip);
+			}
+			export(out, ss);
+		}
+		finally
+		{
+			out.close();
+			if (ss != null) ss.close();
+		}
+	}
+	
+	/**
+	 * The style sheet written by {@link #export(File, boolean)} next to the given
+	 * BioPAX file, e.g. pathway.bpss for pathway.owl and pathway.bpss.gz for pathway.owl.gz.
+	 */
+	public static File getStyleSheetFile(File file)
+	{
+		if (file.getName().toLowerCase().endsWith(".gz"))
+		{
+			File base = new File(file.getParentFile(), file.getName().substring(0, file.getName().length() - 3));
+			return new File(FileUtils.replaceExtension(base, "bpss").getPath() + ".gz");
+		}
+		return FileUtils.replaceExtension(file, "bpss");
+	}
+	
+	private static OutputStream open(File file, boolean gzip) throws IOException
+	{
+		OutputStream result = new FileOutputStream(file);
+		return gzip ? new GZIPOutputStream(result, 64 * 1024) : new BufferedOutputStream(result);
+	}
+	
+	/**
+	 * Write the BioPAX document, and optionally the BioPAX style sheet, to streams,
+	 * e.g. to send them directly to a client. The streams are flushed, closing them
+	 * is up to the caller.
+	 * @param out stream for the BioPAX OWL document
+	 * @param bpssOut stream for the style sheet, or null to leave it out
+	 */
+	public void export(OutputStream out, OutputStream bpssOut) throws IOException
+	{
+		exporter.convertToOWL(bpModel, out);
+		out.flush();
+		if (bpssOut != null)
 		{
-			File fnSs = FileUtils.replaceExtension(file, "bpss");
-			FileOutputStream fos = new FileOutputStream (fnSs);
-			bpss.write(fos);
-			fos.close();
+			bpss.write(bpssOut);
+			bpssOut.flush();
 		}
 	}
 
@@ -607,8 +662,13 @@ public class ExportHelper
 		private Set<PathwayElement> lefts = new HashSet<PathwayElement>();
 		private Set<PathwayElement> rights = new HashSet<PathwayElement>();
 		private Set<PathwayElement> mediators = new HashSet<PathwayElement>();
+		private final GroupIndex groups;
 
-		public Relation(PathwayElement relationLine) {
+		/**
+		 * @param groups group members of the pathway of the relation line
+		 */
+		public Relation(PathwayElement relationLine, GroupIndex groups) {
+			this.groups = groups;
 			if(relationLine.getObjectType() != ObjectType.LINE) {
 				throw new IllegalArgumentException("Object type should be line!");
 			}
@@ -671,7 +731,7 @@ public class ExportHelper
 					//If it's not a protein complex, add each element recursively
 					if (pwe.getGroupStyle() != GroupStyle.COMPLEX)
 					{
-						for(PathwayElement ge : pwe.getParent().getGroupElements(pwe.getGroupId())) 
+						for(PathwayElement ge : groups.getGroupElements(pwe.getGroupId())) 
 						{
 							addElement(ge, set);
 						}
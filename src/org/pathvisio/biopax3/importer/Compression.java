@@ -0,0 +1,197 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.pathvisio.core.debug.Logger;
+
+/**
+ * Detects gzip and zip compressed BioPAX documents by their magic bytes,
+ * so that they can be read without decompressing them to disk first.
+ */
+public final class Compression
+{
+	private Compression() {}
+
+	private static final int GZIP_MAGIC = 0x1f8b;
+	private static final int ZIP_MAGIC = 0x504b;
+
+	/**
+	 * Check the first two bytes of a file for the gzip or zip signature.
+	 */
+	public static boolean isCompressed(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			return isCompressed(in.read(), in.read());
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Check the first two bytes after the position of the buffer.
+	 */
+	static boolean isCompressed(ByteBuffer buffer)
+	{
+		if (buffer.remaining() < 2) return false;
+		int pos = buffer.position();
+		return isCompressed(buffer.get(pos) & 0xFF, buffer.get(pos + 1) & 0xFF);
+	}
+
+	private static boolean isCompressed(int b1, int b2)
+	{
+		int magic = (b1 << 8) | b2;
+		return magic == GZIP_MAGIC || magic == ZIP_MAGIC;
+	}
+
+	/**
+	 * Count the files in a zip archive, without reading their contents.
+	 * @return the number of entries that are not directories, or -1 if the file is not a zip archive
+	 */
+	static int countZipFiles(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			if (((in.read() << 8) | in.read()) != ZIP_MAGIC) return -1;
+		}
+		finally
+		{
+			in.close();
+		}
+		ZipFile zip = new ZipFile(file);
+		try
+		{
+			int result = 0;
+			for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); )
+			{
+				if (!e.nextElement().isDirectory()) result++;
+			}
+			return result;
+		}
+		finally
+		{
+			zip.close();
+		}
+	}
+
+	/**
+	 * Wrap the stream with a decompressing stream if it starts with a gzip or zip
+	 * signature. For a zip archive, the stream is positioned at the first file entry;
+	 * use {@link java.util.zip.ZipFile} to read the other entries. A warning is logged
+	 * when the end of that entry is reached and the archive contains more files.
+	 * @return the decompressed stream, or a buffered stream with the original content
+	 */
+	static InputStream decompress(InputStream in) throws IOException
+	{
+		InputStream result = in.markSupported() ? in : new BufferedInputStream(in);
+		result.mark(2);
+		int b1 = result.read();
+		int b2 = result.read();
+		result.reset();
+		int magic = (b1 << 8) | b2;
+		if (magic == GZIP_MAGIC)
+		{
+			return new GZIPInputStream(result, 64 * 1024);
+		}
+		if (magic == ZIP_MAGIC)
+		{
+			ZipInputStream zip = new ZipInputStream(result);
+			for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry())
+			{
+				if (entry.isDirectory()) continue;
+				Logger.log.info("Reading zip entry " + entry.getName());
+				return new FirstEntryStream(zip, entry.getName());
+			}
+			throw new IOException("Empty zip archive");
+		}
+		return result;
+	}
+
+	/**
+	 * The first file entry of a zip archive. Warns at the end of the entry
+	 * if the archive has more files, as those are not read.
+	 */
+	private static class FirstEntryStream extends FilterInputStream
+	{
+		private final String name;
+		private boolean checked = false;
+
+		FirstEntryStream(ZipInputStream zip, String name)
+		{
+			super(zip);
+			this.name = name;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int result = super.read();
+			if (result < 0) checkRemaining();
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int result = super.read(b, off, len);
+			if (result < 0) checkRemaining();
+			return result;
+		}
+
+		private void checkRemaining() throws IOException
+		{
+			if (checked) return;
+			checked = true;
+			ZipInputStream zip = (ZipInputStream)in;
+			for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry())
+			{
+				if (entry.isDirectory()) continue;
+				Logger.log.warn("Only read " + name + " from the zip archive, ignoring " +
+						entry.getName() + " and any later entries");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The file name without a .gz or .zip suffix, e.g. "reactome.owl" for "reactome.owl.gz".
+	 */
+	public static String stripSuffix(String name)
+	{
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".gz")) return name.substring(0, name.length() - 3);
+		if (lower.endsWith(".zip")) return name.substring(0, name.length() - 4);
+		return name;
+	}
+}
@@ -0,0 +1,132 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.biopax.paxtools.model.BioPAXElement;
+import org.biopax.paxtools.model.level3.SimplePhysicalEntity;
+import org.pathvisio.biopax3.GroupIndex;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.core.model.PathwayElement.MAnchor;
+
+/**
+ * Holds the state of {@link ImportHelper} while a single GPML pathway
+ * is built. Each converted pathway has its own context, so that several
+ * pathways can be converted at the same time.
+ * <p>
+ * A context is only used by one thread at a time.
+ */
+public class ConversionContext 
+{
+	private final Pathway gpmlPathway;
+	
+	/**
+	 * Remembers all BioPAX elements that are converted to
+	 * a GPML element, by {@link UriDictionary} id.
+	 */
+	final IntObjectMap<PathwayElement> converted = new IntObjectMap<PathwayElement>();
+	
+	/**
+	 * Converted elements that have no dictionary id, which only happens 
+	 * for elements that are not part of the model.
+	 */
+	final Map<BioPAXElement, PathwayElement> convertedUnindexed = new HashMap<BioPAXElement, PathwayElement>();
+	
+	/** Dictionary ids of the elements of {@link ModelIndex#getConvertible()} converted in this pathway */
+	final BitSet mapped = new BitSet();
+	
+	/** Number of bits set in {@link #mapped} */
+	int mappedCount = 0;
+	
+	/**
+	 * Report progress for every converted element, for conversions to a single pathway.
+	 * Otherwise progress is reported once the pathway is mapped.
+	 */
+	boolean progressPerElement = false;
+	
+	/** Position for the next element placed by {@link ImportHelper#setCoordinate(ConversionContext, PathwayElement)} */
+	double x = 80;
+	double y = 80;
+	
+	/** Number of anchors added for controls to each line so far */
+	private final Map<PathwayElement, Integer> anchorCounts = new HashMap<PathwayElement, Integer>();
+	
+	/** 
+	 * Data nodes by entity reference (and location) id, for {@link EntityCollapse}.
+	 * The key is built by {@link ImportHelper#collapseKey(SimplePhysicalEntity)}.
+	 */
+	final Map<Long, PathwayElement> collapsed = new HashMap<Long, PathwayElement>();
+	
+	/** The entity each collapsible data node was created for, the first of its variants */
+	final Map<PathwayElement, SimplePhysicalEntity> representatives = new HashMap<PathwayElement, SimplePhysicalEntity>();
+	
+	/** Number of variants recorded on each data node so far */
+	final Map<PathwayElement, Integer> variantCounts = new HashMap<PathwayElement, Integer>();
+	
+	/** Dictionary id of the first interaction converted for each content key, to find duplicates */
+	final Map<InteractionKey, Integer> interactions = new HashMap<InteractionKey, Integer>();
+	
+	/** Dictionary id of a merged duplicate interaction to the id of the interaction it was merged into */
+	final IntObjectMap<Integer> canonical = new IntObjectMap<Integer>();
+	
+	/** The anchor that all controls of a line share, in bundled control mode */
+	final Map<PathwayElement, MAnchor> controlAnchors = new HashMap<PathwayElement, MAnchor>();
+	
+	private final GroupIndex groups = new GroupIndex();
+	
+	protected ConversionContext(Pathway gpmlPathway)
+	{
+		this.gpmlPathway = gpmlPathway;
+	}
+	
+	/**
+	 * The GPML pathway that is being built.
+	 */
+	public Pathway getPathway()
+	{
+		return gpmlPathway;
+	}
+	
+	/**
+	 * Relative position for the next control anchor on the given line. Positions
+	 * are spread over the line with the golden ratio, so that they don't overlap
+	 * however many anchors a line gets. The first anchor is in the middle.
+	 */
+	double nextAnchorPosition(PathwayElement line)
+	{
+		Integer count = anchorCounts.get(line);
+		int n = count == null ? 0 : count;
+		anchorCounts.put(line, n + 1);
+		double f = 0.5 + n * GOLDEN_RATIO;
+		return 0.1 + 0.8 * (f - Math.floor(f));
+	}
+	
+	private static final double GOLDEN_RATIO = 0.6180339887;
+	
+	/**
+	 * Members of the groups created in this pathway. Use {@link GroupIndex#setGroupRef(PathwayElement, String)}
+	 * to add elements to a group, so that the index stays up to date.
+	 */
+	public GroupIndex getGroups()
+	{
+		return groups;
+	}
+}
@@ -17,7 +17,6 @@
 
 package org.pathvisio.biopax3.importer;
 
-import java.util.HashMap;
 import java.util.Map;
 
 import org.biopax.paxtools.model.level3.Entity;
@@ -25,6 +24,7 @@ import org.biopax.paxtools.model.level3.EntityReference;
 import org.biopax.paxtools.model.level3.SimplePhysicalEntity;
 import org.bridgedb.DataSource;
 import org.bridgedb.Xref;
+import org.pathvisio.biopax3.DataSourceRegistry;
 import org.pathvisio.core.model.PathwayElement;
 
 /**
@@ -61,20 +61,31 @@ public class DefaultXrefMapper implements XrefMapper
 		}
 	}
 	
-	private static Map<String, DataSource> dsMap;
-	static 
-	{
-		dsMap = new HashMap<String, DataSource>();
-		dsMap.put ("uniprot", DataSource.getBySystemCode("S"));
-		dsMap.put ("UniProt", DataSource.getBySystemCode("S"));
-		dsMap.put ("kegg compound", DataSource.getBySystemCode("Ck"));
-		dsMap.put ("KEGG compound", DataSource.getBySystemCode("Ck"));
-	}
-	
+	/**
+	 * The same BioPAX xref is usually referred to from many entities,
+	 * remember the most recent mappings.
+	 */
+	private final Map<org.biopax.paxtools.model.level3.Xref, Xref> cache = 
+		new LruCache<org.biopax.paxtools.model.level3.Xref, Xref>(CACHE_SIZE);
+	private static final int CACHE_SIZE = 4096;
+	private static final Xref NO_XREF = new Xref("", null);
 	
 	Xref getDataNodeXref(org.biopax.paxtools.model.level3.Xref x) {
-		String db = x.getDb();
-		DataSource ds = dsMap.containsKey(db) ? dsMap.get(db) : DataSource.getByFullName(db);
+		Xref result;
+		synchronized (cache) {
+			result = cache.get(x);
+		}
+		if (result == null) {
+			result = lookupDataNodeXref(x);
+			synchronized (cache) {
+				cache.put(x, result == null ? NO_XREF : result);
+			}
+		}
+		return result == NO_XREF ? null : result;
+	}
+	
+	private Xref lookupDataNodeXref(org.biopax.paxtools.model.level3.Xref x) {
+		DataSource ds = DataSourceRegistry.getInstance().getDataSource(x.getDb());
 		String id = x.getId();
 		if (id == null || ds == null) return null;
 		return new Xref(id, ds);
@@ -0,0 +1,496 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.GpmlFormat;
+
+/**
+ * Index of the raw XML of all BioPAX elements with an RDF:ID, without
+ * keeping the XML in memory.
+ * <p>
+ * {@link #tee(InputStream)} returns a stream that records, while the paxtools 
+ * reader consumes it, the byte offset and length of every element with an rdf:ID 
+ * (and of top-level elements with an rdf:about). {@link #getElement(String)} later 
+ * rehydrates a single element with a positioned read of just its bytes from 
+ * the source file, so no JDom document has to be kept around for the few elements 
+ * that are attached to the GPML as passive BioPAX elements. The file is opened
+ * once, on the first rehydration, and stays open until {@link #close()}.
+ * <p>
+ * The source can also be a byte buffer, or, for a stream, a temporary copy of
+ * the raw bytes that is written while the stream is read and deleted by {@link #close()}.
+ */
+class ElementIndex
+{
+	private static final Pattern ATTRIBUTE = Pattern.compile("([^\\s=/>]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+	
+	/** Source file, or the temporary copy of a stream */
+	private final File file;
+	/** True if {@link #file} is a temporary copy that is deleted on {@link #close()} */
+	private final boolean spooled;
+	private final UriDictionary dictionary;
+	/** Source for indexes without a file */
+	private ByteBuffer buffer;
+	/** Writes the temporary copy of the stream, until the stream is closed */
+	private OutputStream spool;
+	/** Opened on the first rehydration */
+	private FileChannel channel;
+	
+	/** Offset and length of the xml of each element, by {@link UriDictionary} id. Length 0 means not indexed. */
+	private long[] offsets = new long[1024];
+	private int[] lengths = new int[1024];
+	private int count = 0;
+	
+	/** Everything up to and including the root start tag, with namespace and entity declarations */
+	private byte[] prolog;
+	private String rootName;
+	
+	ElementIndex(File file, UriDictionary dictionary)
+	{
+		this.file = file;
+		this.spooled = false;
+		this.dictionary = dictionary;
+	}
+	
+	/**
+	 * Index of the bytes from the buffer's position to its limit. The buffer
+	 * must not be modified while the index is in use.
+	 */
+	ElementIndex(ByteBuffer buffer, UriDictionary dictionary)
+	{
+		this.file = null;
+		this.spooled = false;
+		this.buffer = buffer.slice();
+		this.dictionary = dictionary;
+	}
+	
+	/**
+	 * Index of a stream without a backing file, e.g. a decompressed file. 
+	 * The stream is copied to a temporary file as it is read, the copy is 
+	 * kept for {@link #getElement(String)} until {@link #close()}.
+	 */
+	ElementIndex(UriDictionary dictionary) throws IOException
+	{
+		this.file = File.createTempFile("biopax-index", ".owl");
+		this.spooled = true;
+		this.spool = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		this.dictionary = dictionary;
+	}
+	
+	/**
+	 * Start indexing the given stream. The returned stream must be
+	 * read and closed by the caller. Use {@link TeeStream#finish()} to index
+	 * the remaining input as well, close only leaves the index incomplete.
+	 */
+	TeeStream tee(InputStream in)
+	{
+		return new TeeStream(in);
+	}
+	
+	/** Number of indexed elements */
+	int size()
+	{
+		return count;
+	}
+	
+	private void record(String rdfId, long offset, long length)
+	{
+		int id = dictionary.intern(rdfId);
+		if (id >= lengths.length)
+		{
+			int capacity = Math.max(lengths.length * 2, id + 1);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		if (lengths[id] == 0) count++;
+		offsets[id] = offset;
+		lengths[id] = (int)length;
+	}
+	
+	/**
+	 * Parse the element with the given RDF:ID from the source file.
+	 * Every call returns a new, detached element.
+	 * @return the element, or null if no element with this id was indexed.
+	 */
+	Element getElement(String rdfId) throws IOException, JDOMException
+	{
+		int id = dictionary.get(rdfId);
+		if (id < 0 || id >= lengths.length || lengths[id] == 0 || prolog == null) return null;
+		
+		byte[] bytes = read(offsets[id], lengths[id]);
+		InputStream in = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+				new ByteArrayInputStream(prolog),
+				new ByteArrayInputStream(bytes),
+				new ByteArrayInputStream(("</" + rootName + ">").getBytes("UTF-8")))));
+		Document doc = new SAXBuilder(false).build(in);
+		Element e = (Element)doc.getRootElement().getChildren().get(0);
+		return (Element)e.detach();
+	}
+	
+	private byte[] read(long offset, int length) throws IOException
+	{
+		if (file == null)
+		{
+			ByteBuffer view = buffer.duplicate();
+			view.position((int)offset);
+			byte[] result = new byte[length];
+			view.get(result);
+			return result;
+		}
+		// positioned reads don't move a shared file pointer, so parallel conversions can share the channel
+		FileChannel ch = getChannel();
+		ByteBuffer result = ByteBuffer.allocate(length);
+		while (result.hasRemaining())
+		{
+			int n = ch.read(result, offset + result.position());
+			if (n < 0) throw new EOFException("Element beyond the end of " + file);
+		}
+		return result.array();
+	}
+	
+	private synchronized FileChannel getChannel() throws IOException
+	{
+		if (spool != null) throw new IllegalStateException("Stream not closed yet");
+		if (channel == null) channel = new RandomAccessFile(file, "r").getChannel();
+		return channel;
+	}
+	
+	/**
+	 * Close the source file and delete the temporary copy of a stream.
+	 * Elements can't be rehydrated from a stream afterwards, a source file
+	 * is opened again when needed.
+	 */
+	synchronized void close()
+	{
+		try
+		{
+			if (spool != null) spool.close();
+			if (channel != null) channel.close();
+		}
+		catch (IOException ex)
+		{
+			Logger.log.warn("Could not close " + file, ex);
+		}
+		spool = null;
+		channel = null;
+		if (spooled && file.exists() && !file.delete())
+		{
+			Logger.log.warn("Could not delete " + file);
+		}
+	}
+	
+	private enum State { TEXT, TAG, COMMENT, CDATA, PI, DECLARATION }
+	
+	/**
+	 * Minimal XML tokenizer that only tracks tags and element depth. 
+	 * Comments, CDATA sections, processing instructions and the 
+	 * DOCTYPE declaration are skipped.
+	 */
+	private class Scanner
+	{
+		private State state = State.TEXT;
+		private long pos = 0;
+		private long tagStart;
+		private final ByteArrayOutputStream tag = new ByteArrayOutputStream();
+		private ByteArrayOutputStream prologBuf = new ByteArrayOutputStream();
+		private int quote = 0;
+		private int second = 0;
+		private int bracketDepth = 0;
+		private int last1 = 0, last2 = 0;
+		
+		private int depth = 0;
+		private String rdfPrefix = "rdf";
+		private String base = null;
+		private final LinkedList<long[]> openSpans = new LinkedList<long[]>();
+		private final LinkedList<String> openIds = new LinkedList<String>();
+		
+		void update(byte[] b, int off, int len) throws IOException
+		{
+			if (spool != null) spool.write(b, off, len);
+			if (prologBuf != null) prologBuf.write(b, off, len);
+			for (int i = off; i < off + len; i++)
+			{
+				int c = b[i] & 0xFF;
+				switch (state)
+				{
+				case TEXT:
+					if (c == '<')
+					{
+						state = State.TAG;
+						tagStart = pos;
+						tag.reset();
+						tag.write(c);
+						quote = 0;
+					}
+					break;
+				case TAG:
+					tag.write(c);
+					if (tag.size() == 2) second = c;
+					if (second == '?') state = State.PI;
+					else if (second == '!' && tag.size() == 4 && startsWith("<!--")) state = State.COMMENT;
+					else if (second == '!' && tag.size() == 9 && startsWith("<![CDATA[")) state = State.CDATA;
+					else if (second == '!' && tag.size() == 3 && c != '-' && c != '[') 
+					{
+						state = State.DECLARATION;
+						bracketDepth = 0;
+					}
+					else if (quote != 0) 
+					{
+						if (c == quote) quote = 0;
+					}
+					else if (c == '"' || c == '\'') quote = c;
+					else if (c == '>') 
+					{
+						state = State.TEXT;
+						processTag(pos + 1);
+					}
+					break;
+				case COMMENT:
+					if (c == '>' && last1 == '-' && last2 == '-') state = State.TEXT;
+					break;
+				case CDATA:
+					if (c == '>' && last1 == ']' && last2 == ']') state = State.TEXT;
+					break;
+				case PI:
+					if (c == '>' && last1 == '?') state = State.TEXT;
+					break;
+				case DECLARATION:
+					if (quote != 0) 
+					{
+						if (c == quote) quote = 0;
+					}
+					else if (c == '"' || c == '\'') quote = c;
+					else if (c == '[') bracketDepth++;
+					else if (c == ']') bracketDepth--;
+					else if (c == '>' && bracketDepth <= 0) state = State.TEXT;
+					break;
+				}
+				last2 = last1;
+				last1 = c;
+				pos++;
+			}
+		}
+		
+		private boolean startsWith(String prefix)
+		{
+			byte[] buf = tag.toByteArray();
+			for (int i = 0; i < prefix.length(); i++)
+			{
+				if (i >= buf.length || buf[i] != prefix.charAt(i)) return false;
+			}
+			return true;
+		}
+		
+		private void processTag(long end)
+		{
+			String text;
+			try
+			{
+				text = tag.toString("UTF-8");
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			
+			if (text.startsWith("</"))
+			{
+				if (!openSpans.isEmpty() && openSpans.getFirst()[1] == depth)
+				{
+					long start = openSpans.removeFirst()[0];
+					record(openIds.removeFirst(), start, end - start);
+				}
+				depth--;
+				return;
+			}
+			
+			boolean selfClosing = text.endsWith("/>");
+			int nameEnd = 1;
+			while (nameEnd < text.length() && " \t\r\n/>".indexOf(text.charAt(nameEnd)) < 0) nameEnd++;
+			String name = text.substring(1, nameEnd);
+			depth++;
+			
+			Map<String, String> atts = new HashMap<String, String>();
+			Matcher m = ATTRIBUTE.matcher(text);
+			m.region(nameEnd, text.length());
+			while (m.find())
+			{
+				atts.put(m.group(1), unescape(m.group(2) != null ? m.group(2) : m.group(3)));
+			}
+			
+			if (depth == 1)
+			{
+				rootName = name;
+				for (Map.Entry<String, String> att : atts.entrySet())
+				{
+					if (att.getKey().startsWith("xmlns:") && GpmlFormat.RDF.getURI().equals(att.getValue()))
+					{
+						rdfPrefix = att.getKey().substring("xmlns:".length());
+					}
+				}
+				base = atts.get("xml:base");
+				prolog = Arrays.copyOf(prologBuf.toByteArray(), (int)end);
+				prologBuf = null;
+			}
+			else
+			{
+				String id = atts.get(rdfPrefix + ":ID");
+				if (id != null)
+				{
+					if (base != null) id = base + "#" + id;
+				}
+				else if (depth == 2)
+				{
+					id = atts.get(rdfPrefix + ":about");
+				}
+				if (id != null)
+				{
+					if (selfClosing) 
+					{
+						record(id, tagStart, end - tagStart);
+					}
+					else
+					{
+						openSpans.addFirst(new long[] { tagStart, depth });
+						openIds.addFirst(id);
+					}
+				}
+			}
+			if (selfClosing) depth--;
+		}
+	}
+	
+	private static String unescape(String value)
+	{
+		if (value.indexOf('&') < 0) return value;
+		return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+			.replace("&apos;", "'").replace("&amp;", "&");
+	}
+	
+	/**
+	 * Feeds all bytes read to the {@link Scanner}.
+	 */
+	class TeeStream extends FilterInputStream
+	{
+		private final Scanner scanner = new Scanner();
+		private final byte[] single = new byte[1];
+		private boolean closed = false;
+
+		TeeStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0) 
+			{
+				single[0] = (byte)b;
+				scanner.update(single, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+			if (n > 0) scanner.update(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			// skipped bytes must still be scanned to keep offsets right
+			byte[] buf = new byte[(int)Math.min(n, 8192)];
+			int read = read(buf, 0, buf.length);
+			return read < 0 ? 0 : read;
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		/**
+		 * Read and index the remaining input, and close the stream.
+		 * The reader may stop before the end of the document.
+		 */
+		void finish() throws IOException
+		{
+			if (closed) return;
+			byte[] buf = new byte[8192];
+			while (read(buf, 0, buf.length) >= 0) { /* drain */ }
+			close();
+		}
+
+		/**
+		 * Close the stream without reading the remaining input, e.g. after an error.
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			if (closed) return;
+			closed = true;
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				synchronized (ElementIndex.this)
+				{
+					if (spool != null)
+					{
+						spool.close();
+						spool = null;
+					}
+				}
+			}
+		}
+	}
+}
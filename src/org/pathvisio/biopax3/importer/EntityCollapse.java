@@ -0,0 +1,50 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import org.pathvisio.core.debug.Logger;
+
+/**
+ * Which physical entities are merged into a single data node on import.
+ * @see ImportHelper#setEntityCollapse(EntityCollapse)
+ */
+public enum EntityCollapse
+{
+	/** Every physical entity gets its own data node */
+	NONE,
+	/** Entities with the same EntityReference share a data node, regardless of state or location */
+	ENTITY_REFERENCE,
+	/** Entities with the same EntityReference and cellular location share a data node */
+	ENTITY_REFERENCE_AND_LOCATION;
+
+	/**
+	 * Get the mode with the given name, or NONE if there is no such mode.
+	 */
+	public static EntityCollapse fromName(String name)
+	{
+		if (name == null || name.trim().length() == 0) return NONE;
+		try
+		{
+			return valueOf(name.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException ex)
+		{
+			Logger.log.warn("Unknown entity collapse mode '" + name + "', using " + NONE);
+			return NONE;
+		}
+	}
+}
@@ -0,0 +1,689 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.Iterator;
+
+import org.biopax.paxtools.model.BioPAXElement;
+import org.biopax.paxtools.model.level3.Complex;
+import org.biopax.paxtools.model.level3.Control;
+import org.biopax.paxtools.model.level3.Controller;
+import org.biopax.paxtools.model.level3.Conversion;
+import org.biopax.paxtools.model.level3.Entity;
+import org.biopax.paxtools.model.level3.Gene;
+import org.biopax.paxtools.model.level3.Interaction;
+import org.biopax.paxtools.model.level3.PhysicalEntity;
+import org.biopax.paxtools.model.level3.Process;
+import org.jdom.Comment;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.GpmlFormat;
+import org.pathvisio.core.model.GroupStyle;
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.core.model.PathwayElement.MAnchor;
+import org.pathvisio.core.model.PathwayElement.MPoint;
+
+/**
+ * Writes GPML directly to a stream while the BioPAX model is mapped, without
+ * building a {@link Pathway}. Each element is written as soon as it is mapped and
+ * then forgotten; only the graph id of the element each BioPAX entity maps to is kept,
+ * indexed by its {@link UriDictionary} id. The BioPAX model itself is still
+ * held in memory completely by {@link ImportHelper}.
+ * <p>
+ * GPML requires all data nodes before the interactions, the interactions before
+ * the groups and the groups before the BioPAX elements, so interactions, groups and
+ * BioPAX elements are spooled to temporary files and appended at the end.
+ * <p>
+ * The elements are the same as those of {@link ImportHelper#convertAll()} with the
+ * default options: the same data nodes, groups, lines, comments and BiopaxRefs,
+ * and the same BioPAX elements for participants that have no mapping. Only the graph ids,
+ * the positions and the anchors differ: every line that is controlled gets a single
+ * anchor at its center, shared by all its controls. The options that need to revisit
+ * elements that were already converted, such as merging duplicates or collapsing
+ * entities, don't apply.
+ * @see ImportHelper#writeGpml(OutputStream)
+ */
+class GpmlEmitter
+{
+	private static final String BODY_MARKER = "GpmlEmitter body";
+	private static final String BIOPAX_MARKER = "GpmlEmitter biopax";
+	private static final int COLUMN_SLOTS = 40;
+
+	private final ImportHelper helper;
+	private final Format format = Format.getPrettyFormat().setEncoding("UTF-8");
+	private final XMLOutputter outputter = new XMLOutputter(format);
+	private final Writer out;
+	private final Spool interactions;
+	private final Spool groups;
+	private final Spool biopax;
+	private final Namespace gpmlNs;
+	/** End of the document without BioPAX elements */
+	private final String tail;
+	/** End of the document, split where the BioPAX elements go */
+	private final String biopaxHead, biopaxTail;
+	private boolean hasBiopax = false;
+
+	/** Dictionary ids of the interactions and unmapped elements that have been handled */
+	private final BitSet emitted = new BitSet();
+	/** Dictionary ids of the interactions whose line, with a shared control anchor, has been written */
+	private final BitSet anchored = new BitSet();
+	/** Graph id of the element each BioPAX entity maps to, like {@link ImportHelper#getConverted} */
+	private final String[] graphIds;
+	/** Center of the line of each anchored interaction */
+	private final float[] xs, ys;
+	private int slot = 0;
+	private int extraIds = 0;
+
+	/**
+	 * Writes the start of the GPML document right away.
+	 * @param name the name of the GPML pathway
+	 */
+	GpmlEmitter(ImportHelper helper, OutputStream out, String name) throws ConverterException, IOException
+	{
+		this.helper = helper;
+		this.out = new OutputStreamWriter(out, "UTF-8");
+		int size = helper.dictionary.size();
+		graphIds = new String[size];
+		xs = new float[size];
+		ys = new float[size];
+
+		// the document of an empty pathway, split where the elements go
+		Pathway empty = new Pathway();
+		empty.getMappInfo().setMapInfoName(name);
+		Document doc = GpmlFormat.CURRENT.createJdom(empty);
+		gpmlNs = doc.getRootElement().getNamespace();
+		String text = render(doc);
+		String marker = "<!--" + BODY_MARKER + "-->";
+		int split = text.indexOf(marker);
+		String head = text.substring(0, split);
+		tail = text.substring(split + marker.length());
+
+		// and the end of the same document with a single BioPAX element, 
+		// to find out where and how GPML wraps them
+		Element dummy = new Element("PublicationXref", Namespace.getNamespace("bp", PathwayScanner.BIOPAX_L3_NS));
+		dummy.setAttribute("ID", BIOPAX_MARKER, GpmlFormat.RDF);
+		empty.getBiopax().addPassiveElement(dummy);
+		String withBiopax = render(GpmlFormat.CURRENT.createJdom(empty));
+		withBiopax = withBiopax.substring(withBiopax.indexOf(marker) + marker.length());
+		String biopaxMarker = "<!--" + BIOPAX_MARKER + "-->";
+		split = withBiopax.indexOf(biopaxMarker);
+		if (split < 0) throw new ConverterException("Unable to find the BioPAX section of the GPML document");
+		biopaxHead = withBiopax.substring(0, split);
+		biopaxTail = withBiopax.substring(split + biopaxMarker.length());
+
+		this.out.write(head);
+		interactions = new Spool("interactions");
+		Spool g = null;
+		try
+		{
+			g = new Spool("groups");
+			biopax = new Spool("biopax");
+		}
+		catch (IOException ex)
+		{
+			interactions.delete();
+			if (g != null) g.delete();
+			throw ex;
+		}
+		groups = g;
+	}
+
+	/**
+	 * Serialize the document with a marker comment after the pathway graphics, where 
+	 * the elements go, and one in place of the dummy BioPAX element, if any.
+	 */
+	private String render(Document doc)
+	{
+		Element root = doc.getRootElement();
+		Element graphics = root.getChild("Graphics", gpmlNs);
+		root.addContent(graphics == null ? 0 : root.indexOf(graphics) + 1, new Comment(BODY_MARKER));
+		Element dummy = null;
+		for (Iterator<?> it = root.getDescendants(); it.hasNext(); )
+		{
+			Object o = it.next();
+			if (o instanceof Element && BIOPAX_MARKER.equals(((Element)o).getAttributeValue("ID", GpmlFormat.RDF)))
+			{
+				dummy = (Element)o;
+				break;
+			}
+		}
+		if (dummy != null)
+		{
+			Element parent = dummy.getParentElement();
+			parent.setContent(parent.indexOf(dummy), new Comment(BIOPAX_MARKER));
+		}
+		return outputter.outputString(doc);
+	}
+
+	/**
+	 * Write the GPML elements for a top level BioPAX entity or interaction.
+	 */
+	void emit(Entity e) throws ConverterException, IOException
+	{
+		if (e instanceof Interaction)
+		{
+			emitInteraction((Interaction)e);
+		}
+		else
+		{
+			emitEntity(e, false);
+		}
+	}
+
+	/**
+	 * Append the spooled interactions, groups and BioPAX elements and the end of 
+	 * the document, and remove the spool files. Flushes, but does not close, the output stream.
+	 */
+	void finish() throws IOException
+	{
+		try
+		{
+			interactions.appendTo(out);
+			groups.appendTo(out);
+			if (hasBiopax)
+			{
+				out.write(biopaxHead);
+				biopax.appendTo(out);
+				out.write(biopaxTail);
+			}
+			else
+			{
+				out.write(tail);
+			}
+			out.flush();
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Remove the spool files without finishing the document, e.g. after an error.
+	 */
+	void close()
+	{
+		interactions.delete();
+		groups.delete();
+		biopax.delete();
+	}
+
+	/**
+	 * As {@link ImportHelper#mapInteraction(ConversionContext, Interaction)}.
+	 */
+	private void emitInteraction(Interaction i) throws ConverterException, IOException
+	{
+		if (i instanceof Conversion)
+		{
+			emitConversion((Conversion)i);
+		}
+		else if (i instanceof Control)
+		{
+			emitControl((Control)i);
+		}
+		else if (markEmitted(i))
+		{
+			for (Entity e : i.getParticipant()) emitParticipant(e);
+		}
+	}
+
+	/**
+	 * As {@link ImportHelper#mapInteractionParticipant(ConversionContext, Entity)}: 
+	 * a new data node or complex gets the comments of the participant once more, and
+	 * participants without a mapping are added as BioPAX elements.
+	 */
+	private String emitParticipant(Entity p) throws ConverterException, IOException
+	{
+		int id = helper.dictionary.get(p.getRDFId());
+		if (id >= 0 && (graphIds[id] != null || emitted.get(id))) return graphIds[id];
+		if (p instanceof PhysicalEntity || p instanceof Gene) return emitEntity(p, true);
+		emitPassive(p);
+		return null;
+	}
+
+	/**
+	 * Writes a data node or complex for the entity, if it hasn't been written yet.
+	 * @param participantComments add the comments once more, with source {@link ImportHelper#COMMENT_SRC}
+	 * @return the graph id of the entity, or null if it has no mapping.
+	 */
+	private String emitEntity(Entity e, boolean participantComments) throws ConverterException, IOException
+	{
+		int id = helper.dictionary.get(e.getRDFId());
+		if (id >= 0 && graphIds[id] != null) return graphIds[id];
+		if (!(e instanceof PhysicalEntity || e instanceof Gene))
+		{
+			Logger.log.warn("No streaming mapping for " + e.getRDFId());
+			return null;
+		}
+
+		String graphId;
+		if (e instanceof Complex)
+		{
+			graphId = emitComplex((Complex)e, null, participantComments);
+		}
+		else
+		{
+			graphId = emitDataNode(e, null, participantComments);
+		}
+		if (id >= 0) graphIds[id] = graphId;
+		return graphId;
+	}
+
+	private String emitDataNode(Entity e, String groupRef, boolean participantComments) throws ConverterException, IOException
+	{
+		PathwayElement node = helper.createDataNode(e);
+		if (groupRef != null) node.setGroupRef(groupRef);
+		helper.mapCommentsAndId(node, e);
+		if (participantComments) addParticipantComments(node, e);
+		place(node);
+		writeElement(out, node);
+		return node.getGraphId();
+	}
+
+	/**
+	 * Writes the members of the complex, stacked in consecutive slots,
+	 * and spools the group itself. Like {@link ImportHelper#mapComplex(ConversionContext, Complex, boolean)},
+	 * every member is written again, and from then on stands for that member.
+	 * @return the graph id of the group
+	 */
+	private String emitComplex(Complex c, String parentGroupId, boolean participantComments) throws ConverterException, IOException
+	{
+		PathwayElement group = PathwayElement.createPathwayElement(ObjectType.GROUP);
+		String name = helper.getTextLabel(c);
+		if (name != null) group.setTextLabel(helper.pooled(name));
+		group.setGroupStyle(GroupStyle.COMPLEX);
+		// the hint for lines to the group is the position of its first member
+		String graphId = "g" + Integer.toString(slot, 36) + "-" + Integer.toString(extraIds++, 36);
+		group.setGraphId(graphId);
+		String groupId = "c" + graphId.substring(1);
+		group.setGroupId(groupId);
+		if (parentGroupId != null) group.setGroupRef(parentGroupId);
+
+		for (PhysicalEntity member : c.getComponent())
+		{
+			String memberGraphId = member instanceof Complex ?
+					emitComplex((Complex)member, groupId, false) :
+					emitDataNode(member, groupId, false);
+			int memberId = helper.dictionary.get(member.getRDFId());
+			if (memberId >= 0) graphIds[memberId] = memberGraphId;
+		}
+		helper.mapCommentsAndId(group, c);
+		if (participantComments) addParticipantComments(group, c);
+		writeElement(groups.writer, group);
+		return graphId;
+	}
+
+	private void addParticipantComments(PathwayElement elm, Entity p)
+	{
+		// in compact mode, the comments were copied already
+		if (helper.compactComments) return;
+		for (String cmt : p.getComment()) elm.addComment(cmt, ImportHelper.COMMENT_SRC);
+	}
+
+	/**
+	 * Writes a line from the first left to the first right participant, and
+	 * lines from the other participants to anchors on that line, as in
+	 * {@link ImportHelper#mapConversion(ConversionContext, Conversion)}.
+	 */
+	private void emitConversion(Conversion c) throws ConverterException, IOException
+	{
+		if (!markEmitted(c)) return;
+		int id = helper.dictionary.get(c.getRDFId());
+		Iterator<PhysicalEntity> itLeft = c.getLeft().iterator();
+		Iterator<PhysicalEntity> itRight = c.getRight().iterator();
+		String left = itLeft.hasNext() ? emitEntity(itLeft.next(), false) : emitUnknown();
+		String right = itRight.hasNext() ? emitEntity(itRight.next(), false) : emitUnknown();
+
+		PathwayElement line = PathwayElement.createPathwayElement(ObjectType.LINE);
+		helper.getStyleMapper().mapConversion(c, line);
+		line.setGraphId(nextId());
+		if (left != null && right != null)
+		{
+			link(line.getMStart(), left, 0);
+			link(line.getMEnd(), right, -1);
+
+			while (itLeft.hasNext())
+			{
+				MAnchor anchor = line.addMAnchor(0.3);
+				anchor.setGraphId(nextId());
+				String pwe = emitEntity(itLeft.next(), false);
+				if (pwe == null) continue;
+				PathwayElement l = PathwayElement.createPathwayElement(ObjectType.LINE);
+				helper.getStyleMapper().mapConversionLeft(c, l);
+				link(l.getMStart(), pwe, 0);
+				link(l.getMEnd(), anchor.getGraphId(), -1);
+				writeElement(interactions.writer, l);
+			}
+			while (itRight.hasNext())
+			{
+				MAnchor anchor = line.addMAnchor(0.7);
+				anchor.setGraphId(nextId());
+				String pwe = emitEntity(itRight.next(), false);
+				if (pwe == null) continue;
+				PathwayElement l = PathwayElement.createPathwayElement(ObjectType.LINE);
+				helper.getStyleMapper().mapConversionRight(c, l);
+				link(l.getMStart(), anchor.getGraphId(), 0);
+				link(l.getMEnd(), pwe, -1);
+				writeElement(interactions.writer, l);
+			}
+		}
+		if (!c.getControlledOf().isEmpty()) addControlAnchor(line, id);
+		helper.mapCommentsAndId(line, c);
+		writeElement(interactions.writer, line);
+	}
+
+	/**
+	 * Writes a line for each controller and controlled process, as in
+	 * {@link ImportHelper#mapControl(ConversionContext, Control)}. Lines to
+	 * processes without an element of their own, such as other interactions,
+	 * are written without an end point, comments or BiopaxRef, as there.
+	 * If the control is controlled itself, the first complete line gets the anchor.
+	 */
+	private void emitControl(Control c) throws ConverterException, IOException
+	{
+		if (!markEmitted(c)) return;
+		int id = helper.dictionary.get(c.getRDFId());
+		boolean controlled = !c.getControlledOf().isEmpty();
+		for (Controller pe : c.getController())
+		{
+			String controller = pe instanceof Entity ? emitEntity((Entity)pe, false) : null;
+			if (controller == null)
+			{
+				Logger.log.warn("No element for controller " + pe.getRDFId() + " of " + c.getRDFId());
+				continue;
+			}
+			for (Process pr : c.getControlled())
+			{
+				PathwayElement line = PathwayElement.createPathwayElement(ObjectType.LINE);
+				helper.getStyleMapper().mapControl(c, line);
+				line.setGraphId(nextId());
+				link(line.getMStart(), controller, 0);
+				String target = emitProcess(pr);
+				if (target != null)
+				{
+					link(line.getMEnd(), target, -1);
+					if (controlled && !anchored.get(id)) addControlAnchor(line, id);
+					helper.mapCommentsAndId(line, c);
+				}
+				writeElement(interactions.writer, line);
+			}
+		}
+	}
+
+	/**
+	 * As {@link ImportHelper#mapProcess(ConversionContext, Process)}.
+	 * @return the graph id to link a control to: the shared anchor on the line 
+	 * of an interaction, the label of a pathway, or null if there is none.
+	 */
+	private String emitProcess(Process pr) throws ConverterException, IOException
+	{
+		if (pr instanceof Interaction)
+		{
+			emitInteraction((Interaction)pr);
+			int id = helper.dictionary.get(pr.getRDFId());
+			return id >= 0 && anchored.get(id) ? "a" + id : null;
+		}
+		if (pr instanceof org.biopax.paxtools.model.level3.Pathway)
+		{
+			return emitPathway((org.biopax.paxtools.model.level3.Pathway)pr);
+		}
+		return null;
+	}
+
+	/**
+	 * A label for a pathway that is controlled, as in
+	 * {@link ImportHelper#mapPathway(ConversionContext, org.biopax.paxtools.model.level3.Pathway)}.
+	 */
+	private String emitPathway(org.biopax.paxtools.model.level3.Pathway p) throws ConverterException, IOException
+	{
+		int id = helper.dictionary.get(p.getRDFId());
+		if (id >= 0 && graphIds[id] != null) return graphIds[id];
+		PathwayElement link = PathwayElement.createPathwayElement(ObjectType.DATANODE);
+		link.setInitialSize();
+		link.setTextLabel(p.getDisplayName());
+		link.setMCenterX(240);
+		link.setMCenterY(80);
+		link.setGraphId("p" + Integer.toString(extraIds++, 36));
+		writeElement(out, link);
+		if (id >= 0) graphIds[id] = link.getGraphId();
+		return link.getGraphId();
+	}
+
+	/**
+	 * Add the anchor that all controls of an interaction link to, at the center of its line.
+	 */
+	private void addControlAnchor(PathwayElement line, int id)
+	{
+		if (id < 0) return;
+		line.addMAnchor(0.5).setGraphId("a" + id);
+		anchored.set(id);
+		xs[id] = (float)((line.getMStart().getX() + line.getMEnd().getX()) / 2);
+		ys[id] = (float)((line.getMStart().getY() + line.getMEnd().getY()) / 2);
+	}
+
+	private String emitUnknown() throws ConverterException, IOException
+	{
+		PathwayElement node = helper.getStyleMapper().createUnknownParticipant();
+		place(node);
+		writeElement(out, node);
+		return node.getGraphId();
+	}
+
+	/**
+	 * Spools the original BioPAX element, as in {@link ImportHelper#noMapping(ConversionContext, BioPAXElement)}.
+	 */
+	private void emitPassive(BioPAXElement e) throws IOException
+	{
+		if (!markEmitted(e)) return;
+		Logger.log.warn("No mapping found for " + e);
+		Element elt = null;
+		try
+		{
+			elt = helper.elementIndex.getElement(e.getRDFId());
+		}
+		catch (Exception ex)
+		{
+			Logger.log.error("Unable to create BiopaxElement", ex);
+			return;
+		}
+		if (elt == null)
+		{
+			Logger.log.warn("No element found for RDF:ID " + e.getRDFId());
+			return;
+		}
+		outputter.output(elt, biopax.writer);
+		biopax.writer.write(format.getLineSeparator());
+		hasBiopax = true;
+	}
+
+	/**
+	 * Marks a BioPAX element as handled.
+	 * @return false if it was handled before, or can't be tracked
+	 */
+	private boolean markEmitted(BioPAXElement e)
+	{
+		int id = helper.dictionary.get(e.getRDFId());
+		if (id < 0 || emitted.get(id)) return false;
+		emitted.set(id);
+		return true;
+	}
+
+	/**
+	 * Link a line end to the element with the given graph id. The coordinates
+	 * are only a hint, PathVisio moves linked points when the pathway is opened.
+	 * @param relX relative x position on the target, 0 for the center and -1 for the left side.
+	 */
+	private void link(MPoint point, String graphId, double relX)
+	{
+		char kind = graphId.charAt(0);
+		if (kind == 'n' || kind == 'g')
+		{
+			int end = graphId.indexOf('-');
+			int s = parseId(graphId.substring(1, end < 0 ? graphId.length() : end), 36);
+			if (s >= 0)
+			{
+				point.setX(slotX(s));
+				point.setY(slotY(s));
+			}
+		}
+		else if (kind == 'a')
+		{
+			int id = parseId(graphId.substring(1), 10);
+			if (id >= 0 && id < xs.length)
+			{
+				point.setX(xs[id]);
+				point.setY(ys[id]);
+			}
+		}
+		else if (kind == 'p')
+		{
+			point.setX(240);
+			point.setY(80);
+		}
+		point.setGraphRef(graphId);
+		point.setRelativePosition(relX, 0);
+	}
+
+	private static int parseId(String s, int radix)
+	{
+		try
+		{
+			return Integer.parseInt(s, radix);
+		}
+		catch (NumberFormatException ex)
+		{
+			return -1;
+		}
+	}
+
+	/** Graph id for a line or anchor, that isn't the target of a line from another BioPAX entity */
+	private String nextId()
+	{
+		return "x" + Integer.toString(extraIds++, 36);
+	}
+
+	/**
+	 * Place a data node in the next free slot, in columns from left to right.
+	 * Its graph id is derived from the slot, so lines can find its position.
+	 */
+	private void place(PathwayElement node)
+	{
+		node.setGraphId("n" + Integer.toString(slot, 36));
+		node.setMCenterX(slotX(slot));
+		node.setMCenterY(slotY(slot));
+		slot++;
+	}
+
+	private static double slotX(int slot)
+	{
+		return 80 + (slot / COLUMN_SLOTS) * 160;
+	}
+
+	private static double slotY(int slot)
+	{
+		return 40 + (slot % COLUMN_SLOTS) * 30;
+	}
+
+	/**
+	 * Serializes a single element. The GPML namespace is left out,
+	 * so that the element inherits the default namespace of the document.
+	 */
+	private void writeElement(Writer w, PathwayElement elt) throws ConverterException, IOException
+	{
+		Element e = GpmlFormat.CURRENT.createJdomElement(elt);
+		removeNamespace(e);
+		outputter.output(e, w);
+		w.write(format.getLineSeparator());
+	}
+
+	private void removeNamespace(Element e)
+	{
+		if (gpmlNs.equals(e.getNamespace())) e.setNamespace(Namespace.NO_NAMESPACE);
+		for (Object child : e.getChildren()) removeNamespace((Element)child);
+	}
+
+	/**
+	 * Temporary file for the elements that must come after the data nodes.
+	 * Always removed with {@link #delete()}, when the emitter is finished or closed.
+	 */
+	private static class Spool
+	{
+		final File file;
+		final Writer writer;
+
+		Spool(String name) throws IOException
+		{
+			file = File.createTempFile("biopax-gpml-" + name, ".xml");
+			try
+			{
+				writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file)), "UTF-8");
+			}
+			catch (IOException ex)
+			{
+				file.delete();
+				throw ex;
+			}
+		}
+
+		void appendTo(Writer out) throws IOException
+		{
+			writer.close();
+			Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+			try
+			{
+				char[] buf = new char[8192];
+				int n;
+				while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		void delete()
+		{
+			try
+			{
+				writer.close();
+			}
+			catch (IOException ex)
+			{
+				Logger.log.warn("Unable to close " + file, ex);
+			}
+			if (file.exists() && !file.delete()) Logger.log.warn("Unable to delete " + file);
+		}
+	}
+}
@@ -21,26 +21,44 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.biopax.paxtools.io.jena.JenaIOHandler;
 import org.biopax.paxtools.model.BioPAXElement;
 import org.biopax.paxtools.model.BioPAXFactory;
 import org.biopax.paxtools.model.BioPAXLevel;
 import org.biopax.paxtools.model.Model;
 import org.biopax.paxtools.model.level3.BiochemicalPathwayStep;
+import org.biopax.paxtools.model.level3.CellularLocationVocabulary;
 import org.biopax.paxtools.model.level3.Complex;
 import org.biopax.paxtools.model.level3.Control;
 import org.biopax.paxtools.model.level3.Controller;
 import org.biopax.paxtools.model.level3.Conversion;
 import org.biopax.paxtools.model.level3.Entity;
+import org.biopax.paxtools.model.level3.EntityReference;
 import org.biopax.paxtools.model.level3.Gene;
 import org.biopax.paxtools.model.level3.Interaction;
 import org.biopax.paxtools.model.level3.Level3Element;
@@ -49,22 +67,20 @@ import org.biopax.paxtools.model.level3.PathwayStep;
 import org.biopax.paxtools.model.level3.PhysicalEntity;
 import org.biopax.paxtools.model.level3.Process;
 import org.biopax.paxtools.model.level3.SimplePhysicalEntity;
-import org.jdom.Attribute;
-import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
-import org.jdom.Namespace;
-import org.jdom.input.SAXBuilder;
 import org.pathvisio.biopax3.BiopaxFormat;
 import org.pathvisio.core.debug.Logger;
 import org.pathvisio.core.model.ConverterException;
-import org.pathvisio.core.model.GpmlFormat;
+import org.pathvisio.core.model.DataNodeType;
+import org.pathvisio.core.model.GraphLink.GraphIdContainer;
 import org.pathvisio.core.model.GroupStyle;
 import org.pathvisio.core.model.ObjectType;
 import org.pathvisio.core.model.Pathway;
 import org.pathvisio.core.model.PathwayElement;
 import org.pathvisio.core.model.PathwayElement.MAnchor;
 import org.pathvisio.core.util.FileUtils;
+import org.pathvisio.core.util.ProgressKeeper;
 
 /**
  * BioPAX to GPML importer. This class provides the basic conversion from BioPAX
@@ -77,49 +93,279 @@ public class ImportHelper {
 	static final String COMMENT_SRC = "biopax";
 
 	Model bpModel;
+	ModelIndex index;
 	BioPAXFactory bpFactory;
-	Map<String, Element> rdfid2element = new HashMap<String, Element>();
-	Document bpDoc ;
-	double x;
-	double y;
+	ElementIndex elementIndex;
+	
+	/** Shared by all indexes and conversion contexts, read-only once the model is indexed. */
+	final UriDictionary dictionary = new UriDictionary();
 	BioPAXFactory l3fact = BioPAXLevel.L3.getDefaultFactory();
 	
-	/**
-	 * Remembers all BioPAX elements that are converted to
-	 * a GPML element.
-	 */
-	Map<BioPAXElement, PathwayElement> converted = new HashMap<BioPAXElement, PathwayElement>();
-	private final File biopaxFile;
+	/** File name of the BioPAX document, and its length in bytes or -1 if unknown */
+	private final String sourceName;
+	private final long sourceLength;
 	
 	/**
-	 * Initialize the BioPAX importer for the given BioPAX file.
+	 * Initialize the BioPAX importer for the given BioPAX file, using
+	 * the Jena reader as before there was a choice. Use 
+	 * {@link #ImportHelper(File, ReaderBackend)} for the faster {@link ReaderBackend#STAX} reader.
 	 * Use {@link #convert()} to convert all pathways in the BioPAX file
 	 * to GPML pathways.
 	 * @throws ConverterException when the BioPAX level is wrong. 
 	 */
 	public ImportHelper(File biopaxFile) throws JDOMException, IOException, ConverterException 
 	{
-		this.biopaxFile = biopaxFile;
-		Logger.log.info(" Opening File : "+biopaxFile);
-		//Read in JDOM to give access to the raw xml
-		SAXBuilder builder = new SAXBuilder(false);
-		bpDoc = builder.build(biopaxFile);
-		Logger.log.info("Building RDF:ID map");
-		mapRdfIds(bpDoc.getRootElement());
-		Logger.log.info("Finished RDF:ID map");
-		
-		//Read in paxtools
-		JenaIOHandler ioh = new JenaIOHandler(l3fact,BioPAXLevel.L3);
+		this(biopaxFile, ReaderBackend.JENA);
+	}
+	
+	/**
+	 * Initialize the BioPAX importer for the given BioPAX file.
+	 * @param backend The paxtools reader used to build the BioPAX model.
+	 * @throws ConverterException when the BioPAX level is wrong. 
+	 */
+	public ImportHelper(File biopaxFile, ReaderBackend backend) throws JDOMException, IOException, ConverterException 
+	{
+		this(biopaxFile, backend, null);
+	}
+	
+	/**
+	 * Initialize the BioPAX importer for the given BioPAX file, reporting
+	 * progress while the file is read and later while it is converted.
+	 * When the progress keeper is cancelled, reading and conversion stop with
+	 * a {@link CancellationException} at the next element.
+	 * The file may be gzip compressed, or a zip archive with a single file.
+	 * Use {@link org.pathvisio.biopax3.BatchConverter} to convert each file of a larger archive.
+	 * @param backend The paxtools reader used to build the BioPAX model.
+	 * @param progress Progress keeper, or null to not report progress.
+	 * @throws ConverterException when the BioPAX level is wrong, or a zip archive contains more than one file.
+	 */
+	public ImportHelper(File biopaxFile, ReaderBackend backend, ProgressKeeper progress) throws JDOMException, IOException, ConverterException 
+	{
+		this.sourceName = Compression.stripSuffix(biopaxFile.getName());
+		this.sourceLength = biopaxFile.length();
+		this.progress = progress;
+		Logger.log.info(" Opening File : "+biopaxFile + " with " + backend + " reader");
+		int zipFiles = Compression.countZipFiles(biopaxFile);
+		if (zipFiles > 1)
+		{
+			throw new ConverterException(biopaxFile.getName() + " contains " + zipFiles +
+					" files, only zip archives with a single BioPAX file can be imported");
+		}
+		// offsets in a compressed file are useless, spool a decompressed copy instead
+		ElementIndex elements = Compression.isCompressed(biopaxFile) ?
+				new ElementIndex(dictionary) : new ElementIndex(biopaxFile, dictionary);
+		read(new FileInputStream(biopaxFile), elements, backend);
+	}
+	
+	/**
+	 * Initialize the BioPAX importer from a stream, e.g. a BioPAX document received
+	 * over the network, without writing it to a file first. The stream is read to the end
+	 * and closed. Of a zip archive, only the first file is read. A temporary copy of the raw document is kept for passive elements,
+	 * call {@link #close()} to delete it when the conversion is done.
+	 * @param name Name of the document, the converted pathway is named after it.
+	 * @param backend The paxtools reader used to build the BioPAX model.
+	 * @param progress Progress keeper, or null to not report progress.
+	 * @throws ConverterException when the BioPAX level is wrong. 
+	 */
+	public ImportHelper(InputStream in, String name, ReaderBackend backend, ProgressKeeper progress) throws JDOMException, IOException, ConverterException 
+	{
+		this.sourceName = Compression.stripSuffix(name);
+		this.sourceLength = -1;
+		this.progress = progress;
+		Logger.log.info(" Opening stream : " + name + " with " + backend + " reader");
+		read(in, new ElementIndex(dictionary), backend);
+	}
+	
+	/**
+	 * Initialize the BioPAX importer from the bytes between the position and limit
+	 * of a buffer, e.g. a memory mapped file. The buffer is not copied, and must not
+	 * be modified while the importer is in use.
+	 * @param name Name of the document, the converted pathway is named after it.
+	 * @param backend The paxtools reader used to build the BioPAX model.
+	 * @param progress Progress keeper, or null to not report progress.
+	 * @throws ConverterException when the BioPAX level is wrong. 
+	 */
+	public ImportHelper(ByteBuffer buffer, String name, ReaderBackend backend, ProgressKeeper progress) throws JDOMException, IOException, ConverterException 
+	{
+		this.sourceName = Compression.stripSuffix(name);
+		this.sourceLength = buffer.remaining();
+		this.progress = progress;
+		Logger.log.info(" Opening buffer : " + name + " with " + backend + " reader");
+		ElementIndex elements = Compression.isCompressed(buffer) ?
+				new ElementIndex(dictionary) : new ElementIndex(buffer, dictionary);
+		read(new ByteBufferInputStream(buffer), elements, backend);
+	}
+	
+	/**
+	 * Read the model with paxtools, while indexing the location of the raw xml of each element.
+	 * Gzip and zip compressed input is decompressed on the fly, see {@link Compression}.
+	 */
+	private void read(InputStream raw, ElementIndex elements, ReaderBackend backend) throws IOException, ConverterException
+	{
+		elementIndex = elements;
+		boolean done = false;
+		try
+		{
+			readModel(raw, backend);
+			done = true;
+		}
+		finally
+		{
+			if (!done) elementIndex.close();
+		}
+	}
+	
+	private void readModel(InputStream raw, ReaderBackend backend) throws IOException, ConverterException
+	{
+		long start = System.currentTimeMillis();
+		if (progress != null)
+		{
+			final long kb = sourceLength >> 10;
+			raw = new ProgressInputStream(raw) {
+				void bytesRead(long count) {
+					progressed("Reading " + sourceName + ", kB", 0, PARSED, count >> 10, kb);
+				}
+			};
+		}
+		ElementIndex.TeeStream in = elementIndex.tee(Compression.decompress(new BufferedInputStream(raw)));
+		boolean read = false;
+		try
+		{
+			bpModel = backend.read(in);
+			in.finish();
+			read = true;
+		}
+		catch (RuntimeException ex)
+		{
+			// the reader may have wrapped our CancellationException
+			checkCancelled();
+			throw ex;
+		}
+		finally
+		{
+			// after a failure or cancellation, don't read the rest of the input,
+			// and don't hide the original exception
+			if (!read)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException ex)
+				{
+					Logger.log.warn("Unable to close " + sourceName, ex);
+				}
+			}
+		}
+		logLoadStatistics(start);
 		
-		bpModel = ioh.convertFromOWL(new BufferedInputStream(
-				new FileInputStream(biopaxFile)));
 		if (bpModel.getLevel() != BioPAXLevel.L3)
 		{
 			throw new ConverterException ("Wrong BioPAX Level " + bpModel.getLevel() + "\n" +
 					"This converter only understands " + BioPAXLevel.L3);
 		}
 		Logger.log.info ("Level : "+bpModel.getLevel());
-		bpModel.getLevel().getDefaultFactory();
+		progressed("Indexing elements", PARSED, INDEXED, 0, 1);
+		index = new ModelIndex(bpModel, dictionary);
+		progressed("Indexing elements", PARSED, INDEXED, 1, 1);
+	}
+	
+	/**
+	 * Release the BioPAX source: close the file that passive elements are read from,
+	 * and delete the temporary copy of a stream or compressed file. Call this when
+	 * all pathways are converted, passive elements of a stream can't be read afterwards.
+	 */
+	public void close()
+	{
+		elementIndex.close();
+	}
+	
+	private final ProgressKeeper progress;
+	private volatile int lastProgress = -1;
+	/**
+	 * Dictionary ids of the elements of {@link ModelIndex#getConvertible()} mapped in the
+	 * current conversion, merged from {@link ConversionContext#mapped} once per pathway.
+	 */
+	private final BitSet mappedIds = new BitSet();
+	
+	/**
+	 * Start counting mapped elements from zero, called at the start of each conversion.
+	 */
+	private void resetProgress() {
+		synchronized (mappedIds) {
+			mappedIds.clear();
+		}
+	}
+	
+	/**
+	 * Add the elements of a mapped pathway to the progress count of the conversion.
+	 * Parallel workers only synchronize here, once per pathway.
+	 */
+	private void mappingDone(ConversionContext ctx) {
+		int done;
+		synchronized (mappedIds) {
+			mappedIds.or(ctx.mapped);
+			done = mappedIds.cardinality();
+		}
+		progressed("Converting elements", INDEXED, MAPPED, done, index.getConvertible().size());
+	}
+	
+	/** The element types counted by {@link ModelIndex#getConvertible()} */
+	private static boolean isConvertible(BioPAXElement e) {
+		return e instanceof Interaction || e instanceof PhysicalEntity || e instanceof Gene;
+	}
+	
+	/** End of each phase, as a fraction of the total work of the progress keeper */
+	private static final double PARSED = 0.5, INDEXED = 0.55, MAPPED = 0.95;
+	
+	/**
+	 * Throws a {@link CancellationException} if the import was cancelled.
+	 */
+	private void checkCancelled() {
+		if (progress != null && progress.isCancelled()) {
+			throw new CancellationException("BioPAX import of " + sourceName + " was cancelled");
+		}
+	}
+	
+	/**
+	 * Report progress within a phase of the import, and check for cancellation.
+	 * The progress keeper is only updated when the percentage changes, or every
+	 * 256 steps for an indeterminate progress keeper.
+	 * @param task description of the phase
+	 * @param from start of the phase, as a fraction of the total work
+	 * @param to end of the phase
+	 * @param done steps done in this phase
+	 * @param total total steps of this phase
+	 */
+	private void progressed(String task, double from, double to, long done, long total) {
+		checkCancelled();
+		if (progress == null) return;
+		int totalWork = progress.getTotalWork();
+		double f = total <= 0 ? 0 : Math.min(1.0, (double)done / total);
+		int value = totalWork > 0 ? (int)((from + (to - from) * f) * totalWork) : 0;
+		if (value == lastProgress && (done & 0xFF) != 0 && done != total) return;
+		lastProgress = value;
+		progress.setTaskName(task + " (" + done + (total > 0 ? " of " + total : "") + ")");
+		if (totalWork > 0) progress.setProgress(value);
+	}
+	
+	/**
+	 * Logs the time it took to read the BioPAX file, the heap in use afterwards and
+	 * the peak heap of the JVM so far. The peak is not reset per import, see the LoadBenchmark 
+	 * test tool for a comparison of the peak heap between reading methods.
+	 */
+	private void logLoadStatistics(long start)
+	{
+		Runtime rt = Runtime.getRuntime();
+		long usedMb = (rt.totalMemory() - rt.freeMemory()) >> 20;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		Logger.log.info("Read " + sourceName + " (" + (sourceLength < 0 ? "?" : "" + (sourceLength >> 10)) + " kB, " + 
+				elementIndex.size() + " RDF:IDs) in " + (System.currentTimeMillis() - start) + 
+				" ms, heap in use " + usedMb + " MB, JVM peak heap " + (peak >> 20) + " MB");
 	}
 
 	XrefMapper xrefMapper;
@@ -152,27 +398,24 @@ public class ImportHelper {
 		return styleMapper;
 	}
 	
+	XrefNormalizer xrefNormalizer;
+	
 	/**
-	 * Creates a mapping between all RDF:ID properties and their corresponding
-	 * JDom Element. This method will recursively create mappings for all children
-	 * of the given element.
+	 * Set the normalizer that is applied to each converted pathway,
+	 * or null (the default) to keep the xrefs from the BioPAX file.
+	 * @see XrefNormalizer
 	 */
-	private void mapRdfIds(Element e) {
-		Attribute a = e.getAttribute("ID", GpmlFormat.RDF);
-		if(a != null) {
-			String base = 
-				e.getDocument().getRootElement().getAttributeValue("base", Namespace.XML_NAMESPACE);
-			String rdfId = a.getValue();
-
-			if(base != null) rdfId = base + "#" + rdfId;
-			rdfid2element.put(rdfId, e);
-		}
-		
-		for(Object o : e.getChildren()) {
-			if(o instanceof Element) {
-				mapRdfIds((Element)o);
-			}
-		}
+	public void setXrefNormalizer(XrefNormalizer xrefNormalizer) {
+		this.xrefNormalizer = xrefNormalizer;
+	}
+	
+	/**
+	 * Called for every GPML pathway when all its elements have been converted.
+	 */
+	private void pathwayDone(Pathway gpmlPathway) {
+		progressed("Finishing pathway", MAPPED, 1.0, 0, 1);
+		if (xrefNormalizer != null) xrefNormalizer.normalize(gpmlPathway);
+		progressed("Finishing pathway", MAPPED, 1.0, 1, 1);
 	}
 	
 	/**
@@ -181,54 +424,64 @@ public class ImportHelper {
 	 * converted, or the element doesn't have a direct mapping.
 	 * @see BiopaxFormat#isConverted(BioPAXElement)
 	 */
-	protected PathwayElement getConverted(BioPAXElement e) {
-		return converted.get(e);
+	protected PathwayElement getConverted(ConversionContext ctx, BioPAXElement e) {
+		int id = dictionary.get(e.getRDFId());
+		return id < 0 ? ctx.convertedUnindexed.get(e) : ctx.converted.get(id);
 	}
 	
 	/**
 	 * Mark the BioPAX element as converted. This will add a BiopaxRef
-	 * to the given GPML element. After this method is called, {@link #isConverted(BioPAXElement)}
+	 * to the given GPML element. After this method is called, {@link #isConverted(ConversionContext, BioPAXElement)}
 	 * will return true for the given BioPAX element.
 	 * @param e The BioPAX element that will be marked as converted.
 	 * @param p The pathway element that maps to the BioPAX element.
 	 */
-	
-
-	protected void markConverted(BioPAXElement e, PathwayElement p) {
-//		if(p != null) {
-//			bpRef= p.getBiopaxReferenceManager();
-//		}
-		converted.put(e, p);
+	protected void markConverted(ConversionContext ctx, BioPAXElement e, PathwayElement p) {
+		int id = dictionary.get(e.getRDFId());
+		// replicas, variants and aliases mark the same element again, count it once
+		if (id >= 0 && isConvertible(e) && !ctx.mapped.get(id)) {
+			ctx.mapped.set(id);
+			ctx.mappedCount++;
+		}
+		if (ctx.progressPerElement) {
+			progressed("Converting elements", INDEXED, MAPPED, ctx.mappedCount, index.getConvertible().size());
+		} else {
+			checkCancelled();
+		}
+		if (id < 0) ctx.convertedUnindexed.put(e, p);
+		else ctx.converted.put(id, p);
 	}
 	
 	/**
 	 * Find out if a BioPAX element has already been converted to
 	 * a GPML element.
 	 */
-	protected boolean isConverted(BioPAXElement e) {
-		return converted.containsKey(e);
+	protected boolean isConverted(ConversionContext ctx, BioPAXElement e) {
+		int id = dictionary.get(e.getRDFId());
+		return id < 0 ? ctx.convertedUnindexed.containsKey(e) : ctx.converted.containsKey(id);
 	}
 	
 	/**
 	 * This method will be called for each element that doesn't have a
 	 * mapping
-	 * @param gpmlPathway
+	 * @param ctx
 	 * @param o
 	 */
-	void noMapping(Pathway gpmlPathway, BioPAXElement o) {
+	void noMapping(ConversionContext ctx, BioPAXElement o) {
 		Logger.log.warn("No mapping found for " + o);
 		String rdfId = o.getRDFId();
-		markConverted(o, null);
+		markConverted(ctx, o, null);
 		
-		Element e = rdfid2element.get(rdfId);
-		if(e != null) {
-			try {
-				gpmlPathway.getBiopax().addPassiveElement(e);
-			} catch (Exception ex) {
-				Logger.log.error("Unable to create BiopaxElement", ex);
+		try {
+			// the raw xml is only parsed now, each call returns a fresh copy
+			Element e = elementIndex.getElement(rdfId);
+			if(e != null) {
+				ctx.getPathway().getBiopax().addPassiveElement(e);
+			} else {
+				Logger.log.warn("No element found for RDF:ID " + rdfId);
 			}
-		} else {
-			Logger.log.warn("No element found for RDF:ID " + rdfId);
+		} catch (Exception ex) {
+			Logger.log.error("Unable to create BiopaxElement", ex);
 		}
 	}
 
@@ -261,11 +514,26 @@ public class ImportHelper {
 	}
 	
 	public List<org.biopax.paxtools.model.level3.Pathway> getPathways(){
-		List<org.biopax.paxtools.model.level3.Pathway> pathways = new ArrayList<org.biopax.paxtools.model.level3.Pathway>();
-		for (BioPAXElement bpe : bpModel.getObjects(org.biopax.paxtools.model.level3.Pathway.class)) {
-			pathways.add((org.biopax.paxtools.model.level3.Pathway)bpe);
+		return new ArrayList<org.biopax.paxtools.model.level3.Pathway>(index.getPathways());
+	}
+
+	/**
+	 * Find a pathway by the id reported by {@link PathwayScanner}.
+	 * Readers differ in how they combine xml:base with rdf:ID, so if there
+	 * is no exact match, the pathway with the same local id is returned.
+	 * @return the pathway, or null if it could not be found.
+	 */
+	public org.biopax.paxtools.model.level3.Pathway findPathway(String rdfId) {
+		BioPAXElement exact = bpModel.getByID(rdfId);
+		if (exact instanceof org.biopax.paxtools.model.level3.Pathway) {
+			return (org.biopax.paxtools.model.level3.Pathway)exact;
 		}
-		return pathways;
+		String local = rdfId.substring(rdfId.lastIndexOf('#') + 1);
+		for (org.biopax.paxtools.model.level3.Pathway p : getPathways()) {
+			String id = p.getRDFId();
+			if (id.substring(id.lastIndexOf('#') + 1).equals(local)) return p;
+		}
+		return null;
 	}
 
 	/**
@@ -274,119 +542,245 @@ public class ImportHelper {
 	 */
 	public Pathway convertAll()
 	{
+		resetProgress();
 		Pathway result = new Pathway();
-		result.getMappInfo().setMapInfoName(FileUtils.removeExtension(biopaxFile.getName()));
-		x = 80;
-		y = 80;
-		for (BioPAXElement bpElt : bpModel.getObjects())
+		result.getMappInfo().setMapInfoName(FileUtils.removeExtension(sourceName));
+		ConversionContext ctx = newPathway(result);
+		ctx.progressPerElement = true;
+		for (Entity bpElt : index.getConvertible())
 		{
 			if (bpElt instanceof Interaction)
 			{
-				mapInteraction(result, (Interaction)bpElt);
+				mapInteraction(ctx, (Interaction)bpElt);
 			} 
-			else if (bpElt instanceof PhysicalEntity || bpElt instanceof Gene)
+			else
 			{
-				PathwayElement pv = mapEntity(result, (Entity)bpElt, false);
+				PathwayElement pv = mapEntity(ctx, bpElt, false);
 				result.add(pv);
 			}
-			
 		}
-//		for (BioPAXElement bpe : bpModel.getObjects())
-//		{
-//			Element e = rdfid2element.get(bpe.getRDFId());
-//			if (e != null && e instanceof Entity) 
-//				result.getBiopaxElementManager().addPassiveElement(e);
-//		}
+		mappingDone(ctx);
+		pathwayDone(result);
+		logCompactStatistics();
 		return result;
 	}
 	
+	/**
+	 * Convert the whole BioPAX model like {@link #convertAll()}, but write the
+	 * GPML directly to the output stream instead of building a Pathway. This saves
+	 * the memory of the PathVisio model, but the BioPAX model must still be loaded
+	 * completely, so memory use still grows with the size of the input. The result has
+	 * the same elements as that of {@link #convertAll()} with the default options, but other
+	 * graph ids and positions; the options that merge or collapse elements don't apply.
+	 * The output stream is flushed, but not closed.
+	 */
+	public void writeGpml(OutputStream out) throws ConverterException, IOException
+	{
+		GpmlEmitter emitter = new GpmlEmitter(this, out, FileUtils.removeExtension(sourceName));
+		try
+		{
+			List<Entity> convertible = index.getConvertible();
+			int done = 0;
+			for (Entity bpElt : convertible)
+			{
+				emitter.emit(bpElt);
+				progressed("Writing GPML", INDEXED, 1.0, ++done, convertible.size());
+			}
+			emitter.finish();
+		}
+		finally
+		{
+			emitter.close();
+		}
+	}
+	
+	int threads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Set the number of threads used by {@link #convert()}.
+	 * Defaults to the number of available processors.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+	
 	/**
 	 * Convert the BioPAX model to a set of GPML Pathways.
 	 * This methods creates a GPML pathway for each BioPAX pathway entity,
 	 * by iterating over the pathwayStep properties and converting
 	 * all underlying interactions and physicalEntities to GPML
-	 * elements.
-	 * @return A list of converted GPML pathways.
+	 * elements. Pathways are converted in parallel, see {@link #setThreads(int)}.
+	 * @return A list of converted GPML pathways, in model order.
 	 */
 	public List<Pathway> convert() {
 		Logger.log.info("Starting conversion of " + bpModel);
+		resetProgress();
 		List<Pathway> pathways = new ArrayList<Pathway>();
 
-		if (bpModel.getObjects(org.biopax.paxtools.model.level3.Pathway.class).size()==0){			
-			newPathway();
+		if (index.getPathways().size()==0){			
 			Pathway gpmlPathway = new Pathway();
+			ConversionContext ctx = newPathway(gpmlPathway);
+			ctx.progressPerElement = true;
 			pathways.add(gpmlPathway);
 			
 			// Map the pathway components
-			for (Interaction bpc : bpModel.getObjects(Interaction.class)) {
+			for (Interaction bpc : index.getInteractions()) {
 				
 				Logger.log.info("Pathway component: " + bpc.getRDFId());
 				if (bpc instanceof Interaction) {
-					mapInteraction(gpmlPathway, bpc);
+					mapInteraction(ctx, bpc);
 				} else {
-					noMapping(gpmlPathway, bpc);
+					noMapping(ctx, bpc);
 				}
 			}	
+			mappingDone(ctx);
+			pathwayDone(gpmlPathway);
 		}
-			
-		else{
-			for (BioPAXElement bpe : bpModel.getObjects(org.biopax.paxtools.model.level3.Pathway.class)) {
-				x= 80;
-				y = 80;
-				Logger.log.info("Found pathway: " + bpe.getRDFId());
-				newPathway();
-				Pathway gpmlPathway = new Pathway();
-				pathways.add(gpmlPathway);
-
-				org.biopax.paxtools.model.level3.Pathway bpPathway = (org.biopax.paxtools.model.level3.Pathway) bpe;
-
-				// Map general pathway information
-				String pathwayName = bpPathway.getRDFId().substring(bpPathway.getRDFId().lastIndexOf('#') + 1);
-				if (pathwayName != null) {
-					if (pathwayName.length() > 50) {
-						pathwayName = pathwayName.substring(0, 49);
-					}
-					gpmlPathway.getMappInfo().setMapInfoName(pathwayName);
+		else {
+			pathways.addAll(convertParallel(getPathways()));
+		}
+		logCompactStatistics();
+		return pathways;
+	}
+	
+	/**
+	 * Lazy variant of {@link #convert()}. The returned list has one element for 
+	 * each BioPAX pathway entity, in model order, but a pathway is only converted 
+	 * when it is first accessed with {@link List#get(int)}. Converted pathways 
+	 * may be released under memory pressure, and are then converted again on 
+	 * the next access, as a new object.
+	 * <p>
+	 * If the model has no pathway entities, the list contains the single pathway
+	 * that {@link #convert()} would return, converted right away.
+	 * @param cacheSize number of most recently accessed pathways that are never released,
+	 * 0 to release any pathway that is not in use when memory runs low.
+	 */
+	public List<Pathway> convertLazily(int cacheSize) {
+		if (index.getPathways().size() == 0) return convert();
+		// make sure the mappers are created before the list may be shared
+		getXrefMapper();
+		getStyleMapper();
+		return new LazyPathwayList(this, getPathways(), cacheSize);
+	}
+	
+	/**
+	 * Converts each of the given BioPAX pathways on a pool of {@link #threads} workers.
+	 * Each pathway has its own {@link ConversionContext}, so workers share only the
+	 * (read-only) BioPAX model and the mappers. Progress is reported once per pathway,
+	 * so that workers don't contend for the shared count while mapping.
+	 */
+	private List<Pathway> convertParallel(List<org.biopax.paxtools.model.level3.Pathway> bpPathways) {
+		List<Pathway> result = new ArrayList<Pathway>();
+		int poolSize = Math.min(threads, bpPathways.size());
+		if (poolSize <= 1) {
+			for (org.biopax.paxtools.model.level3.Pathway bpPathway : bpPathways) {
+				result.add(convertOne(bpPathway));
+			}
+			return result;
+		}
+		
+		// make sure the mappers are created before they are shared
+		getXrefMapper();
+		getStyleMapper();
+		
+		List<Callable<Pathway>> tasks = new ArrayList<Callable<Pathway>>();
+		for (final org.biopax.paxtools.model.level3.Pathway bpPathway : bpPathways) {
+			tasks.add(new Callable<Pathway>() {
+				public Pathway call() {
+					return convertOne(bpPathway);
 				}
-
-				//			File file = new File(gpmlPathway.getMappInfo()
-				//					.getMapInfoName().replace(' ', '_')
-				//					+ ".gpml"
-				//			);
-				//			System.out.println(" File : "+file.getAbsolutePath());
-				//			gpmlPathway.setSourceFile(file);
-
-				//			Organism organism = Organism.fromLatinName(bpPathway.getORGANISM().getNAME());
-				//			if (organism != null) {
-				//				gpmlPathway.getMappInfo().setOrganism(organism.latinName());
-				//			}
-
-				// Map the pathway components
-				for (PathwayStep bpc : bpPathway.getPathwayOrder()) {
-
-					Logger.log.info("Pathway component: " + bpc.getRDFId());
-					if (bpc instanceof BiochemicalPathwayStep) {
-						mapBiochemicalPathwayStep(gpmlPathway, (BiochemicalPathwayStep) bpc);
-					} else {
-						//					mapProcess(gpmlPathway, bp );
-						noMapping(gpmlPathway, bpc);
-					}
-				}	
+			});
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		try {
+			// invokeAll returns the futures in task order
+			for (Future<Pathway> f : pool.invokeAll(tasks)) {
+				result.add(f.get());
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while converting pathways", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			pool.shutdownNow();
 		}
-		return pathways;
+		return result;
 	}
 
-	public Pathway simple_convert(org.biopax.paxtools.model.level3.Pathway paw){
-		x = 80;
-		y = 80;
-		Logger.log.info("Found pathway: " + paw.getRDFId());
-		newPathway();
+	/**
+	 * Variant of {@link #convert()} that hands each GPML pathway to the handler
+	 * as soon as it is converted, instead of returning them all in a list. The pathways
+	 * are the same as those of {@link #convert()}, in the same order, including pathways
+	 * that are a component of another one. If the model has no pathway entities, the
+	 * single pathway of {@link #convert()} is handed over, with a null BioPAX pathway.
+	 * <p>
+	 * Only one GPML pathway is kept in memory at any time. The BioPAX model is
+	 * still read as a whole by the constructor, so this doesn't reduce the memory
+	 * needed for the BioPAX side.
+	 * @throws ConverterException when the handler aborts the conversion
+	 */
+	public void convertEach(PathwayHandler handler) throws ConverterException {
+		if (index.getPathways().size() == 0) {
+			handler.pathwayConverted(convert().get(0), null);
+			return;
+		}
+		resetProgress();
+		for (org.biopax.paxtools.model.level3.Pathway bpPathway : getPathways()) {
+			Pathway gpmlPathway = convertOne(bpPathway);
+			handler.pathwayConverted(gpmlPathway, bpPathway);
+		}
+		logCompactStatistics();
+	}
+	
+	/**
+	 * Converts a single BioPAX pathway entity, by iterating over its
+	 * pathwayOrder and pathwayComponent properties. Pathways that are a component
+	 * of this pathway are converted to a label, like in {@link #convert()}.
+	 * @param bpPathway a pathway of this model, see {@link #getPathways()} and {@link #findPathway(String)}
+	 */
+	public Pathway convertPathway(org.biopax.paxtools.model.level3.Pathway bpPathway) {
+		resetProgress();
+		return convertOne(bpPathway);
+	}
+	
+	/** 
+	 * {@link #convertPathway(org.biopax.paxtools.model.level3.Pathway)} as part of
+	 * a conversion of several pathways, which share the progress count.
+	 */
+	private Pathway convertOne(org.biopax.paxtools.model.level3.Pathway bpPathway) {
+		Logger.log.info("Found pathway: " + bpPathway.getRDFId());
 		Pathway gpmlPathway = new Pathway();
-		
-		org.biopax.paxtools.model.level3.Pathway bpPathway = (org.biopax.paxtools.model.level3.Pathway) paw;
+		ConversionContext ctx = newPathway(gpmlPathway);
 
 		// Map general pathway information
+		setPathwayName(gpmlPathway, bpPathway);
+
+		// Map the pathway components
+		for (PathwayStep bpc : bpPathway.getPathwayOrder()) {
+
+			Logger.log.info("Pathway component: " + bpc.getRDFId());
+			if (bpc instanceof BiochemicalPathwayStep) {
+				mapBiochemicalPathwayStep(ctx, (BiochemicalPathwayStep) bpc);
+			} else {
+				//					mapProcess(gpmlPathway, bp );
+				noMapping(ctx, bpc);
+			}
+		}
+		// components that are not part of a step, mapProcess skips the ones that are
+		for (Process p : bpPathway.getPathwayComponent()) {
+			mapProcess(ctx, p);
+		}
+		mappingDone(ctx);
+		layoutPathway(gpmlPathway, bpPathway);
+		pathwayDone(gpmlPathway);
+		return gpmlPathway;
+	}
+	
+	private void setPathwayName(Pathway gpmlPathway, org.biopax.paxtools.model.level3.Pathway bpPathway) {
 		String pathwayName = bpPathway.getRDFId().substring(bpPathway.getRDFId().lastIndexOf('#') + 1);
 		if (pathwayName != null) {
 			if (pathwayName.length() > 50) {
@@ -394,60 +788,71 @@ public class ImportHelper {
 			}
 			gpmlPathway.getMappInfo().setMapInfoName(pathwayName);
 		}
+	}
+
+	public Pathway simple_convert(org.biopax.paxtools.model.level3.Pathway paw){
+		Logger.log.info("Found pathway: " + paw.getRDFId());
+		Pathway gpmlPathway = new Pathway();
+		ConversionContext ctx = newPathway(gpmlPathway);
+		
+		// Map general pathway information
+		setPathwayName(gpmlPathway, paw);
 		
 		// Map the pathway components
 		for (Process bpc : paw.getPathwayComponent()) {
 
 			Logger.log.info("Pathway component: " + bpc.getRDFId());
 			if (bpc instanceof BiochemicalPathwayStep) {
-				mapBiochemicalPathwayStep(gpmlPathway, (BiochemicalPathwayStep) bpc);
+				mapBiochemicalPathwayStep(ctx, (BiochemicalPathwayStep) bpc);
 			} else {
 				//					mapProcess(gpmlPathway, bp );
-				noMapping(gpmlPathway, bpc);
+				noMapping(ctx, bpc);
 			}
 		}	
+		pathwayDone(gpmlPathway);
 		return gpmlPathway;
 	}
 
 	
 	/**
-	 * Initializes variables that need to be refreshed every time a new pathway
-	 * is encountered. This method is called from {@link #convert()} every time a
-	 * new BioPAX pathway entity is found.
+	 * Creates the state that is needed while a single GPML pathway is
+	 * built. This method is called from {@link #convert()} every time a
+	 * new BioPAX pathway entity is found, possibly from several threads at once.
+	 * Subclasses may override this to return a subclass of {@link ConversionContext}.
 	 */
-	protected void newPathway() {
-		converted.clear();
+	protected ConversionContext newPathway(Pathway gpmlPathway) {
+		return new ConversionContext(gpmlPathway);
 	}
 
 	/**
 	 * Maps a BioPAX pathwayStep to GPML element(s) and marks
 	 * it as converted.
-	 * @param gpmlPathway The GPML pathway to add the elements to
+	 * @param ctx The conversion context of the GPML pathway to add the elements to
 	 * @param pws The BioPAX entity
 	 */
-	void mapBiochemicalPathwayStep(Pathway gpmlPathway, BiochemicalPathwayStep pws) {
-		if(isConverted(pws)) return;
+	void mapBiochemicalPathwayStep(ConversionContext ctx, BiochemicalPathwayStep pws) {
+		if(isConverted(ctx, pws)) return;
 		Logger.log.info("Mapping pathwayStep: " + pws.getRDFId());
 		for (Process p : pws.getStepProcess()) {
-			mapProcess(gpmlPathway, p);
+			mapProcess(ctx, p);
 		}
-		markConverted(pws, null);
+		markConverted(ctx, pws, null);
 	}
 
 	/**
 	 * Maps a BioPAX process to GPML element(s) and marks it as
 	 * converted.
-	 * @param gpmlPathway The GPML pathway to add the elements to
+	 * @param ctx The conversion context of the GPML pathway to add the elements to
 	 * @param pws The BioPAX entity
 	 */
-	void mapProcess(Pathway gpmlPathway, Process p) {
-		if(isConverted(p)) return;
+	void mapProcess(ConversionContext ctx, Process p) {
+		if(isConverted(ctx, p)) return;
 		Logger.log.info("\n Mapping process: " + p.getRDFId());
 		if (p instanceof Interaction) {
-			mapInteraction(gpmlPathway, (Interaction) p);
+			mapInteraction(ctx, (Interaction) p);
 		} 
 		else if (p instanceof org.biopax.paxtools.model.level3.Pathway){
-			mapPathway(gpmlPathway, (org.biopax.paxtools.model.level3.Pathway) p);
+			mapPathway(ctx, (org.biopax.paxtools.model.level3.Pathway) p);
 		}
 	}
 
@@ -456,11 +861,11 @@ public class ImportHelper {
 	 * it as converted. A pathway entity will be converted to 
 	 * a label in this method (this should become a Link in the
 	 * future).
-	 * @param gpmlPathway The GPML pathway to add the elements to
+	 * @param ctx The conversion context of the GPML pathway to add the elements to
 	 * @param pws The BioPAX entity
 	 */
-	void mapPathway(Pathway gpmlPathway, org.biopax.paxtools.model.level3.Pathway p) {
-		if(isConverted(p)) return;
+	void mapPathway(ConversionContext ctx, org.biopax.paxtools.model.level3.Pathway p) {
+		if(isConverted(ctx, p)) return;
 		Logger.log.info("Mapping pathway " + p.getRDFId());
 		
 		PathwayElement link = PathwayElement.createPathwayElement(ObjectType.DATANODE);
@@ -471,49 +876,120 @@ public class ImportHelper {
 		link.setInitialSize();
 		link.setMCenterX(240);
 		link.setMCenterY(80);
-		gpmlPathway.add(link);
-		markConverted(p, link);
+		ctx.getPathway().add(link);
+		markConverted(ctx, p, link);
 	}
 	
 	/**
 	 * Maps a BioPAX interaction to GPML element(s) and marks
 	 * it as converted.
-	 * @param gpmlPathway The GPML pathway to add the elements to
+	 * @param ctx The conversion context of the GPML pathway to add the elements to
 	 * @param pws The BioPAX entity
 	 */
-	void mapInteraction(Pathway gpmlPathway, Interaction i) {
-		if(isConverted(i)) return;
+	void mapInteraction(ConversionContext ctx, Interaction i) {
+		if(isConverted(ctx, i)) return;
 		Logger.log.info("Mapping interaction " + i.getRDFId());
 		
 		if (i instanceof Conversion) {
-			mapConversion(gpmlPathway, (Conversion) i);
+			mapConversion(ctx, (Conversion) i);
 		} else if (i instanceof Control){
-			mapControl(gpmlPathway, (Control) i);
+			mapControl(ctx, (Control) i);
 		}
 		else 
 		{
-			mapOtherInteraction(gpmlPathway, i);
+			mapOtherInteraction(ctx, i);
 		}
 	}
 
-	void mapOtherInteraction(Pathway gpmlPathway, Interaction i){
-		if(isConverted(i)) return;
+	void mapOtherInteraction(ConversionContext ctx, Interaction i){
+		if(isConverted(ctx, i)) return;
 		System.out.println("Mapping PhysicalInteraction " + i.getRDFId());
 		for (Entity e : i.getParticipant()){
-			mapInteractionParticipant(gpmlPathway, e);
+			mapInteractionParticipant(ctx, e);
 		}
 	}
 	
 	void mapCommentsAndId(PathwayElement elm, Level3Element bp)
 	{
-		elm.addComment("" + bp.getComment(), "owl");
-		
-		elm.addComment(
-				(bp instanceof Named ? ((Named)bp).getName().toString() : "") + 
-				" RDFId "+ bp.getRDFId(), "Biopax3GPML");
+		if (compactComments)
+		{
+			// one comment per BioPAX comment, shared between elements, and no
+			// synthetic name/RDFId comment: the BiopaxRef already links the source.
+			for (String cmt : bp.getComment())
+			{
+				elm.addComment(pooled(cmt), "owl");
+			}
+			String skipped = (bp instanceof Named ? ((Named)bp).getName().toString() : "") + 
+				" RDFId "+ bp.getRDFId();
+			omittedChars.addAndGet(skipped.length());
+			compactElements.incrementAndGet();
+		}
+		else
+		{
+			elm.addComment("" + bp.getComment(), "owl");
+			
+			elm.addComment(
+					(bp instanceof Named ? ((Named)bp).getName().toString() : "") + 
+					" RDFId "+ bp.getRDFId(), "Biopax3GPML");
+		}
 		elm.addBiopaxRef(bp.getRDFId());
 	}
 	
+	boolean compactComments = false;
+	
+	/**
+	 * Estimated heap cost of a String with the given number of characters, and of
+	 * a GPML comment object. These are not measured, they assume a 64 bit JVM with
+	 * compressed references, and are only used for logging the effect of
+	 * {@link #setCompactComments(boolean)}.
+	 */
+	private static long estimatedStringBytes(long chars) { return 40 + 2 * chars; }
+	private static final long ESTIMATED_COMMENT_BYTES = 24;
+	
+	private final ConcurrentMap<String, String> stringPool = new ConcurrentHashMap<String, String>();
+	/** Strings replaced by a pooled instance, and their total length */
+	private final AtomicLong sharedStrings = new AtomicLong();
+	private final AtomicLong sharedChars = new AtomicLong();
+	/** Total length of the left out "Biopax3GPML" comments, one per element in compactElements */
+	private final AtomicLong omittedChars = new AtomicLong();
+	private final AtomicLong compactElements = new AtomicLong();
+	
+	/**
+	 * Compact comment mode. When set, comments and labels are deduplicated and 
+	 * shared between all GPML elements, each BioPAX comment is copied only once, 
+	 * and the synthetic "Biopax3GPML" comment with names and RDFId is left out.
+	 * The number of left out comments and shared strings, with an estimate
+	 * of the heap saved, are logged after each conversion.
+	 */
+	public void setCompactComments(boolean compactComments) {
+		this.compactComments = compactComments;
+	}
+	
+	/**
+	 * In compact comment mode, returns the shared instance of the given string.
+	 */
+	String pooled(String s)
+	{
+		if (!compactComments || s == null) return s;
+		String existing = stringPool.putIfAbsent(s, s);
+		if (existing == null) return s;
+		sharedStrings.incrementAndGet();
+		sharedChars.addAndGet(s.length());
+		return existing;
+	}
+	
+	void logCompactStatistics()
+	{
+		long elements = compactElements.get();
+		if (!compactComments || elements == 0) return;
+		long shared = sharedStrings.get();
+		long estimate = elements * (ESTIMATED_COMMENT_BYTES + estimatedStringBytes(0)) + 2 * omittedChars.get() +
+				shared * estimatedStringBytes(0) + 2 * sharedChars.get();
+		Logger.log.info("Compact comments: left out " + elements + " generated comments (" + omittedChars.get() + 
+				" chars), shared " + shared + " duplicate strings (" + sharedChars.get() + " chars); " +
+				"estimated saving " + (estimate >> 10) + " kB of GPML heap, " + (estimate / elements) + " bytes per element");
+	}
+	
 	/**
 	 * Maps a BioPAX control to GPML element(s) and marks
 	 * it as converted. Depending on the number of
@@ -535,28 +1011,41 @@ public class ImportHelper {
 	 * c ------------------------|
 	 * 
 	 * results in a total of 6 GPML lines.
+	 * <p>
+	 * With {@link #setBundleControls(boolean)}, the same control results in 4 lines
+	 * that meet in a single junction, see {@link #mapControlBundled(ConversionContext, Control)}.
 	 * 
-	 * @param gpmlPathway The GPML pathway to add the elements to
+	 * @param ctx The conversion context of the GPML pathway to add the elements to
 	 * @param pws The BioPAX entity
 	 */
-	double anchor_pos = 0.1;
-	protected void mapControl(Pathway gpmlPathway, Control c) {
-		/*
-		 * TODO: the CONTROLLER -> CONTROLLED lines should use an anchored line
-		 * to connect to the CONTROLLED instance:
-		 * a --------------
-		 *                 \
-		 * b ---------------o------> x
-		 *                 /
-		 * c --------------
-		 */
-		if(isConverted(c)) return;
+	protected void mapControl(ConversionContext ctx, Control c) {
+		if(isConverted(ctx, c)) return;
 		Logger.log.info("Mapping control " + c.getRDFId());
+		InteractionKey key = null;
+		if (mergeDuplicates) {
+			// the key refers to the controlled processes, which may be duplicates themselves
+			for(Process pr : c.getControlled()) mapProcess(ctx, pr);
+			key = interactionKey(ctx, c);
+			if (mergeDuplicate(ctx, key, c)) return;
+		}
+		if (bundleControls) {
+			mapControlBundled(ctx, c);
+		} else {
+			mapControlLines(ctx, c);
+		}
+		if (key != null) ctx.interactions.put(key, dictionary.get(c.getRDFId()));
+	}
+	
+	/**
+	 * Maps a control to a line for each controller and controlled process.
+	 */
+	private void mapControlLines(ConversionContext ctx, Control c) {
 		Set<Controller> controller = c.getController();
 		Set<Process> controlled = c.getControlled();
+		Pathway gpmlPathway = ctx.getPathway();
 	
 		for(Controller pe : controller) {
-			PathwayElement pweController = mapEntity(gpmlPathway, pe, false);
+			PathwayElement pweController = mapEntity(ctx, pe, shouldReplicate(pe));
 			for(Process pr : controlled) {
 				PathwayElement line = PathwayElement.createPathwayElement(ObjectType.LINE);
 				
@@ -565,23 +1054,102 @@ public class ImportHelper {
 				gpmlPathway.add(line);
 				line.getMStart().linkTo(pweController, 0, 0);
 				
-				mapProcess(gpmlPathway, pr);
-				PathwayElement prPwe = getConverted(pr);
+				mapProcess(ctx, pr);
+				PathwayElement prPwe = getConverted(ctx, pr);
 				if (prPwe == null) continue;
 				if(prPwe.getObjectType() == ObjectType.LINE) {
-					MAnchor ma = prPwe.addMAnchor(anchor_pos);
+					MAnchor ma = prPwe.addMAnchor(ctx.nextAnchorPosition(prPwe));
 					line.getMEnd().linkTo(ma, -1,0);
-					anchor_pos = anchor_pos + 0.03;
-					if (anchor_pos > 0.9) anchor_pos -= 0.8;
 				} else {
 					line.getMEnd().linkTo(prPwe, -1,0);
 				}
 				mapCommentsAndId(line, c);
-				markConverted(c, line);
+				markConverted(ctx, c, line);
 			}
 		}
 	}
 	
+	boolean bundleControls = false;
+	
+	/**
+	 * Bundled control mode. By default a control results in a line for every
+	 * combination of controller and controlled process, each with its own anchor.
+	 * When set, the lines of a control meet in a single junction, and all controls
+	 * of the same process share one anchor on its line.
+	 */
+	public void setBundleControls(boolean bundleControls) {
+		this.bundleControls = bundleControls;
+	}
+	
+	/**
+	 * Maps a control in bundled mode. The first controller is linked to the first 
+	 * controlled process, and the other controllers join that line at a junction:
+	 * 
+	 * CONTROLLER = a,b,c    CONTROLLED = x
+	 * 
+	 * a --------------
+	 *                 \
+	 * b ---------------o------> x
+	 *                 /
+	 * c --------------
+	 * 
+	 * Other controlled processes branch off from the same junction, which is then
+	 * placed near the start of the line. Controlled processes that are lines get
+	 * one anchor, shared with all other controls of that process.
+	 */
+	private void mapControlBundled(ConversionContext ctx, Control c) {
+		Pathway gpmlPathway = ctx.getPathway();
+		
+		List<PathwayElement> sources = new ArrayList<PathwayElement>();
+		for(Controller pe : c.getController()) {
+			PathwayElement pweController = mapEntity(ctx, pe, shouldReplicate(pe));
+			if (pweController != null) sources.add(pweController);
+		}
+		List<GraphIdContainer> targets = new ArrayList<GraphIdContainer>();
+		for(Process pr : c.getControlled()) {
+			mapProcess(ctx, pr);
+			PathwayElement prPwe = getConverted(ctx, pr);
+			if (prPwe == null) continue;
+			if(prPwe.getObjectType() == ObjectType.LINE) {
+				MAnchor ma = ctx.controlAnchors.get(prPwe);
+				if (ma == null) {
+					ma = prPwe.addMAnchor(ctx.nextAnchorPosition(prPwe));
+					ctx.controlAnchors.put(prPwe, ma);
+				}
+				targets.add(ma);
+			} else {
+				targets.add(prPwe);
+			}
+		}
+		if (sources.isEmpty() || targets.isEmpty()) return;
+		
+		PathwayElement main = PathwayElement.createPathwayElement(ObjectType.LINE);
+		getStyleMapper().mapControl(c, main);
+		gpmlPathway.add(main);
+		main.getMStart().linkTo(sources.get(0), 0, 0);
+		main.getMEnd().linkTo(targets.get(0), -1, 0);
+		mapCommentsAndId(main, c);
+		markConverted(ctx, c, main);
+		if (sources.size() == 1 && targets.size() == 1) return;
+		
+		// branch off early when fanning out, join late when fanning in
+		MAnchor junction = main.addMAnchor(targets.size() > 1 ? 0.2 : 0.8);
+		for (PathwayElement source : sources.subList(1, sources.size())) {
+			PathwayElement line = PathwayElement.createPathwayElement(ObjectType.LINE);
+			line.setConnectorType(main.getConnectorType());
+			gpmlPathway.add(line);
+			line.getMStart().linkTo(source, 0, 0);
+			line.getMEnd().linkTo(junction, -1, 0);
+		}
+		for (GraphIdContainer target : targets.subList(1, targets.size())) {
+			PathwayElement line = PathwayElement.createPathwayElement(ObjectType.LINE);
+			getStyleMapper().mapControl(c, line);
+			gpmlPathway.add(line);
+			line.getMStart().linkTo(junction, 0, 0);
+			line.getMEnd().linkTo(target, -1, 0);
+		}
+	}
+	
 	/**
 	 * Maps a BioPAX conversion to GPML element(s) and marks
 	 * it as converted. The conversion may result in multiple
@@ -597,12 +1165,18 @@ public class ImportHelper {
 	 * LEFT with the first RIGHT property. Additional properties will be
 	 * linked to the main line using anchors.
 	 * 
-	 * @param gpmlPathway The GPML pathway to add the elements to
+	 * @param ctx The conversion context of the GPML pathway to add the elements to
 	 * @param pws The BioPAX entity
 	 */
-	protected void mapConversion(Pathway gpmlPathway, Conversion c) {
-		if(isConverted(c)) return;
+	protected void mapConversion(ConversionContext ctx, Conversion c) {
+		if(isConverted(ctx, c)) return;
 		Logger.log.info("Mapping conversion " + c.getRDFId());
+		InteractionKey key = null;
+		if (mergeDuplicates) {
+			key = interactionKey(ctx, c);
+			if (mergeDuplicate(ctx, key, c)) return;
+		}
+		Pathway gpmlPathway = ctx.getPathway();
 		Iterator<PhysicalEntity> itLeft = c.getLeft().iterator();
 		Iterator<PhysicalEntity> itRight = c.getRight().iterator();
 
@@ -615,13 +1189,13 @@ public class ImportHelper {
 			pweLeft = getStyleMapper().createUnknownParticipant();
 			gpmlPathway.add(pweLeft);
 		} else {
-			pweLeft = mapEntity(gpmlPathway, pLeft, false);
+			pweLeft = mapEntity(ctx, pLeft, shouldReplicate(pLeft));
 		}
 		if(pRight == null) {
 			pweRight = getStyleMapper().createUnknownParticipant();
 			gpmlPathway.add(pweRight);
 		} else {
-			pweRight = mapEntity(gpmlPathway, pRight, false);
+			pweRight = mapEntity(ctx, pRight, shouldReplicate(pRight));
 		}
 		//Create a line between the first input/output
 		PathwayElement line = PathwayElement.createPathwayElement(ObjectType.LINE);
@@ -636,7 +1210,7 @@ public class ImportHelper {
 			while(itLeft.hasNext()) {
 				MAnchor anchorLeft = line.addMAnchor(0.3);
 				PhysicalEntity pep = itLeft.next();
-				PathwayElement pwe = mapEntity(gpmlPathway, pep, false);
+				PathwayElement pwe = mapEntity(ctx, pep, shouldReplicate(pep));
 				if(pep != pLeft && pwe != null) {
 					PathwayElement l = PathwayElement.createPathwayElement(ObjectType.LINE);
 					getStyleMapper().mapConversionLeft(c, l);
@@ -649,7 +1223,7 @@ public class ImportHelper {
 			while(itRight.hasNext()) {
 				MAnchor anchorRight = line.addMAnchor(0.7);
 				PhysicalEntity pep = itRight.next();
-				PathwayElement pwe = mapEntity(gpmlPathway, pep, false);
+				PathwayElement pwe = mapEntity(ctx, pep, shouldReplicate(pep));
 				if(pep != pRight && pwe != null) {
 					PathwayElement l = PathwayElement.createPathwayElement(ObjectType.LINE);
 					getStyleMapper().mapConversionRight(c, l);
@@ -661,34 +1235,115 @@ public class ImportHelper {
 		}
 		mapCommentsAndId(line, c);
 		
-		markConverted(c, line);
+		markConverted(ctx, c, line);
+		if (key != null) ctx.interactions.put(key, dictionary.get(c.getRDFId()));
+	}
+	
+	boolean mergeDuplicates = false;
+	
+	/**
+	 * Duplicate interaction mode. When set, conversions and controls with the 
+	 * same type, direction, participants and controllers as one that was already
+	 * converted in the same pathway are not converted again. Instead, a BiopaxRef 
+	 * to the duplicate is added to the existing line.
+	 */
+	public void setMergeDuplicates(boolean mergeDuplicates) {
+		this.mergeDuplicates = mergeDuplicates;
+	}
+	
+	/**
+	 * If an interaction with the same key was converted before, 
+	 * map the given interaction to the same GPML line.
+	 * @return true if the interaction was merged
+	 */
+	private boolean mergeDuplicate(ConversionContext ctx, InteractionKey key, Interaction i) {
+		if (key == null) return false;
+		Integer original = ctx.interactions.get(key);
+		if (original == null) return false;
+		
+		Logger.log.info("Merging duplicate interaction " + i.getRDFId() + " into " + dictionary.getUri(original));
+		PathwayElement line = ctx.converted.get(original);
+		if (line != null) line.addBiopaxRef(i.getRDFId());
+		markConverted(ctx, i, line);
+		ctx.canonical.put(dictionary.get(i.getRDFId()), original);
+		return true;
+	}
+	
+	/**
+	 * Content key of a conversion or control, see {@link #setMergeDuplicates(boolean)}.
+	 * Controlled processes that were merged themselves are replaced by the interaction 
+	 * they were merged into.
+	 * @return the key, or null if the interaction can't be merged.
+	 */
+	InteractionKey interactionKey(ConversionContext ctx, Interaction i) {
+		if (dictionary.get(i.getRDFId()) < 0) return null;
+		InteractionKey.Builder key = new InteractionKey.Builder(i.getModelInterface());
+		if (i instanceof Conversion) {
+			Conversion c = (Conversion)i;
+			key.add(c.getConversionDirection() == null ? -1 : c.getConversionDirection().ordinal());
+			int[] left = ids(c.getLeft());
+			int[] right = ids(c.getRight());
+			Set<Controller> controllers = new HashSet<Controller>();
+			for (Control control : c.getControlledOf()) controllers.addAll(control.getController());
+			int[] ctrl = ids(controllers);
+			if (left == null || right == null || ctrl == null) return null;
+			key.addSorted(left).addSorted(right).addSorted(ctrl);
+		} else if (i instanceof Control) {
+			Control c = (Control)i;
+			key.add(c.getControlType() == null ? -1 : c.getControlType().ordinal());
+			int[] ctrl = ids(c.getController());
+			int[] controlled = ids(c.getControlled());
+			if (ctrl == null || controlled == null) return null;
+			for (int j = 0; j < controlled.length; j++) {
+				Integer original = ctx.canonical.get(controlled[j]);
+				if (original != null) controlled[j] = original;
+			}
+			key.addSorted(ctrl).addSorted(controlled);
+		} else {
+			return null;
+		}
+		return key.build();
+	}
+	
+	/** Dictionary ids of the elements, or null if one of them has no id */
+	private int[] ids(Collection<? extends BioPAXElement> elements) {
+		int[] result = new int[elements.size()];
+		int n = 0;
+		for (BioPAXElement e : elements) {
+			int id = dictionary.get(e.getRDFId());
+			if (id < 0) return null;
+			result[n++] = id;
+		}
+		return result;
 	}
 
 	/**
 	 * Maps a BioPAX interactionParticipan to GPML element(s) and marks
 	 * it as converted.
-	 * @param gpmlPathway The GPML pathway to add the elements to
+	 * @param ctx The conversion context of the GPML pathway to add the elements to
 	 * @param pws The BioPAX entity
 	 */
-	PathwayElement mapInteractionParticipant(Pathway gpmlPathway,
+	PathwayElement mapInteractionParticipant(ConversionContext ctx,
 			Entity p) {
-		if(isConverted(p)) return converted.get(p);
+		boolean replicate = shouldReplicate(p);
+		if(isConverted(ctx, p) && !replicate) return getConverted(ctx, p);
 		Logger.log.info("Mapping interaction participant: " + p.getRDFId());
 		PathwayElement pwElm = null;
 
 		if (p instanceof PhysicalEntity || p instanceof Gene) {
-			pwElm = mapEntity(gpmlPathway,
-					p, false);
+			pwElm = mapEntity(ctx,
+					p, replicate);
 		} else {
-			noMapping(gpmlPathway, p);
+			noMapping(ctx, p);
 		}
 
-		if (pwElm != null) {
+		// in compact mode, mapEntity already copied the comments
+		if (pwElm != null && !compactComments) {
 			for (String cmt : p.getComment()) {
 				pwElm.addComment(cmt, COMMENT_SRC);
 			}
 		}
-		markConverted(p, pwElm);
+		markConverted(ctx, p, pwElm);
 		return pwElm;
 	}
 
@@ -711,34 +1366,91 @@ public class ImportHelper {
 //		return pe;
 //	}
 	
+	/** Dictionary ids of the entities selected by the replication policy */
+	private BitSet replicated = new BitSet();
+	
+	/**
+	 * Set the policy that decides which entities are replicated for each 
+	 * interaction, see {@link #shouldReplicate(PhysicalEntity)}. The policy is
+	 * evaluated for the whole model right away. By default nothing is replicated.
+	 * @param policy the policy, or null to not replicate any entity.
+	 */
+	public void setReplicationPolicy(ReplicationPolicy policy) {
+		replicated = policy == null ? new BitSet() : policy.compute(index.getInteractions(), dictionary);
+		Logger.log.info("Replicating " + replicated.cardinality() + " entities per interaction");
+	}
+	
 	/**
 	 * Should this physicalEntity always create a replicate GPML element, even
-	 * if it's already converted. If this method returns true, it will override the forceCreate
-	 * parameter of {@link #mapPhysicalEntityParticipant(Pathway, physicalEntityParticipant, boolean)}.
-	 * This can be used to specify that certain small molecules should be converted into a replicate GPML
-	 * element for each reaction (e.g. ATP or ADP).
+	 * if it's already converted. If this method returns true, participants of 
+	 * conversions, controls and other interactions are converted into a separate
+	 * GPML element for each interaction (e.g. ATP or ADP).
+	 * @see #setReplicationPolicy(ReplicationPolicy)
 	 */
 	protected boolean shouldReplicate(PhysicalEntity p) {
-//		if("ATP".equals(p.getSHORT_NAME())) return true;
-//		if("ADP".equals(p.getSHORT_NAME())) return true;
-		return false;
+		int id = dictionary.get(p.getRDFId());
+		return id >= 0 && replicated.get(id);
+	}
+	
+	private boolean shouldReplicate(Entity e) {
+		return e instanceof PhysicalEntity && shouldReplicate((PhysicalEntity)e);
 	}
 	
-	public void setCoordinate (PathwayElement elt)
+	public void setCoordinate (ConversionContext ctx, PathwayElement elt)
 	{
-		elt.setMCenterX(x);
-		elt.setMCenterY(y);
-		y = y + 40;
-		x = x + 80;
-		if (x > 640) {
-			x = 80;
-			y= y - 240;
+		elt.setMCenterX(ctx.x);
+		elt.setMCenterY(ctx.y);
+		ctx.y = ctx.y + 40;
+		ctx.x = ctx.x + 80;
+		if (ctx.x > 640) {
+			ctx.x = 80;
+			ctx.y= ctx.y - 240;
 		}		
 	}
 	
-	PathwayElement mapGeneOrNonComplexPhysicalEntity(Pathway gpmlPathway, Entity entity)
+	private static final int SHARED_CACHE_SIZE = 4096;
+	private static final String NO_LABEL = new String();
+	
+	/**
+	 * Entity references are shared by many physical entities, in different 
+	 * pathways, so their labels are cached.
+	 */
+	private final Map<String, String> entityRefLabels = new LruCache<String, String>(SHARED_CACHE_SIZE);
+	
+	private String getEntityReferenceLabel(EntityReference ref)
+	{
+		if (ref == null) return null;
+		String label;
+		synchronized (entityRefLabels)
+		{
+			label = entityRefLabels.get(ref.getRDFId());
+		}
+		if (label == null)
+		{
+			label = getTextLabel(ref);
+			synchronized (entityRefLabels)
+			{
+				entityRefLabels.put(ref.getRDFId(), label == null ? NO_LABEL : label);
+			}
+		}
+		return label == NO_LABEL ? null : label;
+	}
+	
+	PathwayElement mapGeneOrNonComplexPhysicalEntity(ConversionContext ctx, Entity entity)
 	{
 		Logger.log.trace("\tMapping gene or non-complex: " + entity.getRDFId());
+		PathwayElement pwElm = createDataNode(entity);
+		setCoordinate(ctx, pwElm);
+		ctx.getPathway().add(pwElm);
+		return pwElm;
+	}
+	
+	/**
+	 * Create a data node for a gene or non-complex physical entity, with label, 
+	 * size, style and xref, but without position and without adding it to a pathway.
+	 */
+	PathwayElement createDataNode(Entity entity)
+	{
 		PathwayElement pwElm = PathwayElement.createPathwayElement(ObjectType.DATANODE);
 		Logger.log.trace(" GraphRef for "+entity.getRDFId()+ " : " + pwElm.getGraphRef());
 		//semi-automatic layout
@@ -747,19 +1459,17 @@ public class ImportHelper {
 		{
 			if (entity instanceof SimplePhysicalEntity)
 			{
-				name = getTextLabel(((SimplePhysicalEntity)entity).getEntityReference());
+				name = getEntityReferenceLabel(((SimplePhysicalEntity)entity).getEntityReference());
 			}
 		}
 		if (name != null) {
-			pwElm.setTextLabel(name);
+			pwElm.setTextLabel(pooled(name));
 		}
 		pwElm.setInitialSize();
 		pwElm.setMWidth(6 * (pwElm.getTextLabel().length()+2));
 		
-		setCoordinate(pwElm);			
 		getStyleMapper().mapEntity(entity, pwElm);
 		getXrefMapper().mapXref(entity, pwElm);
-		gpmlPathway.add(pwElm);
 		return pwElm;
 	}
 	
@@ -767,74 +1477,196 @@ public class ImportHelper {
 	/**
 	 * Maps a BioPAX gene or physicalEntity to GPML element(s) and marks
 	 * it as converted.
-	 * @param gpmlPathway The GPML pathway to add the elements to
+	 * @param ctx The conversion context of the GPML pathway to add the elements to
 	 * @param pws The BioPAX entity
 	 * @param forceCreate If true, this method will always create a new GPML element instead
 	 * of reusing the converted element, even if the BioPAX entity has been converted to a GPML 
 	 * element before.
 	 */
-	PathwayElement mapEntity(Pathway gpmlPathway, Entity entity, boolean forceCreate) {
-		if(isConverted(entity) && !forceCreate) return getConverted(entity);
+	PathwayElement mapEntity(ConversionContext ctx, Entity entity, boolean forceCreate) {
+		if(isConverted(ctx, entity) && !forceCreate) return getConverted(ctx, entity);
 		Logger.log.info("Mapping physical entity: " + entity.getRDFId());
+		
+		Long key = null;
+		if (!forceCreate && entityCollapse != EntityCollapse.NONE && entity instanceof SimplePhysicalEntity) {
+			key = collapseKey((SimplePhysicalEntity)entity);
+			PathwayElement existing = key == null ? null : ctx.collapsed.get(key);
+			if (existing != null) {
+				addVariant(ctx, existing, (SimplePhysicalEntity)entity);
+				markConverted(ctx, entity, existing);
+				return existing;
+			}
+		}
+		
 		PathwayElement pwElm = null;
 		if (entity instanceof Complex) {
 			Logger.log.trace("\tMapping complex: " + entity.getRDFId());
-			pwElm = mapComplex(gpmlPathway, (Complex) entity, true);
+			pwElm = mapComplex(ctx, (Complex) entity, true);
 		} 
 		else if (entity instanceof Gene || entity instanceof PhysicalEntity)
 		{
-			pwElm = mapGeneOrNonComplexPhysicalEntity(gpmlPathway, entity);
+			pwElm = mapGeneOrNonComplexPhysicalEntity(ctx, entity);
 		}
 		
 		mapCommentsAndId(pwElm, entity);
+		if (key != null && pwElm != null) {
+			ctx.collapsed.put(key, pwElm);
+			ctx.representatives.put(pwElm, (SimplePhysicalEntity)entity);
+		}
 				
-		markConverted(entity, pwElm);
+		markConverted(ctx, entity, pwElm);
 		return pwElm;
 	}
 	
+	EntityCollapse entityCollapse = EntityCollapse.NONE;
+	
+	/**
+	 * Set which physical entities are merged into a single data node.
+	 * Entities are only merged within the same GPML pathway, and never when
+	 * they are replicated or part of a complex. Each merged entity adds a BiopaxRef 
+	 * and a {@link #VARIANT_PREFIX} attribute to the data node; the first merge also
+	 * adds the attribute for the entity the data node was created for.
+	 */
+	public void setEntityCollapse(EntityCollapse entityCollapse) {
+		this.entityCollapse = entityCollapse == null ? EntityCollapse.NONE : entityCollapse;
+	}
+	
+	/**
+	 * Prefix of the dynamic properties that describe the entities merged into
+	 * a data node, followed by a sequence number starting at 1 for the entity
+	 * the data node was created for.
+	 * @see #setEntityCollapse(EntityCollapse)
+	 */
+	public static final String VARIANT_PREFIX = "org.pathvisio.biopax3.Variant.";
+	
+	/**
+	 * Dictionary id of the entity reference in the high bits, and of the 
+	 * cellular location (or -1) in the low bits. Null if there is no entity reference.
+	 */
+	Long collapseKey(SimplePhysicalEntity entity) {
+		EntityReference ref = entity.getEntityReference();
+		if (ref == null) return null;
+		int refId = dictionary.get(ref.getRDFId());
+		if (refId < 0) return null;
+		int locId = -1;
+		if (entityCollapse == EntityCollapse.ENTITY_REFERENCE_AND_LOCATION && entity.getCellularLocation() != null) {
+			locId = dictionary.get(entity.getCellularLocation().getRDFId());
+		}
+		return ((long)refId << 32) | (locId & 0xFFFFFFFFL);
+	}
+	
+	private void addVariant(ConversionContext ctx, PathwayElement pwElm, SimplePhysicalEntity entity) {
+		Integer count = ctx.variantCounts.get(pwElm);
+		int n = count == null ? 0 : count;
+		if (n == 0) {
+			SimplePhysicalEntity first = ctx.representatives.get(pwElm);
+			if (first != null) pwElm.setDynamicProperty(VARIANT_PREFIX + (++n), describeVariant(first));
+		}
+		pwElm.setDynamicProperty(VARIANT_PREFIX + (++n), describeVariant(entity));
+		ctx.variantCounts.put(pwElm, n);
+		pwElm.addBiopaxRef(entity.getRDFId());
+	}
+	
+	/** Name, location and number of features of a collapsed entity */
+	private String describeVariant(SimplePhysicalEntity entity) {
+		StringBuilder variant = new StringBuilder();
+		String name = getTextLabel(entity);
+		variant.append(name == null ? entity.getRDFId() : name);
+		CellularLocationVocabulary location = entity.getCellularLocation();
+		if (location != null && !location.getTerm().isEmpty()) {
+			variant.append(" [").append(location.getTerm().iterator().next()).append("]");
+		}
+		if (!entity.getFeature().isEmpty()) {
+			variant.append(" (").append(entity.getFeature().size()).append(" features)");
+		}
+		return pooled(variant.toString());
+	}
+	
 	/**
 	 * Maps a BioPAX complex to GPML element(s) and marks
 	 * it as converted.
-	 * @param gpmlPathway The GPML pathway to add the elements to
+	 * @param ctx The conversion context of the GPML pathway to add the elements to
 	 * @param pws The BioPAX entity
 	 * @param forceCreate If true, this method will always create a new GPML element instead
 	 * of reusing the converted element, even if the BioPAX entity has been converted to a GPML 
 	 * element before.
 	 */
-	PathwayElement mapComplex(Pathway gpmlPathway, Complex c, boolean forceCreate) {
-		if(isConverted(c) && !forceCreate) return converted.get(c);
+	PathwayElement mapComplex(ConversionContext ctx, Complex c, boolean forceCreate) {
+		if(isConverted(ctx, c) && !forceCreate) return getConverted(ctx, c);
 		Logger.log.info("Mapping complex: " + c.getRDFId());
 		PathwayElement group = PathwayElement.createPathwayElement(ObjectType.GROUP);
-		gpmlPathway.add(group);
+		ctx.getPathway().add(group);
 		
 		String name = getTextLabel(c);
 		if (name != null) {
-			group.setTextLabel(name);
+			group.setTextLabel(pooled(name));
 		}
 		group.setGroupStyle(GroupStyle.COMPLEX);
 		String groupId = group.createGroupId();
 
 		for(PhysicalEntity ep : c.getComponent()) {
-			PathwayElement groupElm = mapEntity(gpmlPathway, ep, true);
+			PathwayElement groupElm = flyweightComplexes ? mapComplexMember(ctx, ep) : mapEntity(ctx, ep, true);
+			if (groupElm == null) continue;
 			String currRef = groupElm.getGroupRef();
 			if(currRef != null) {
 				Logger.log.warn("Object already in group " + currRef + ", replacing with " + groupId);
 			}
-			groupElm.setGroupRef(groupId);
+			ctx.getGroups().setGroupRef(groupElm, groupId);
 		}
-		stackGroup(group);
-		markConverted(c, group);
+		stackGroup(ctx, group);
+		markConverted(ctx, c, group);
 		return group;
 	}
 	
+	boolean flyweightComplexes = false;
+	
+	/**
+	 * Flyweight complex mode. By default, every member of a complex is converted 
+	 * again each time the complex is converted, so nested complexes are copied 
+	 * in full for every reaction they take part in. When set, each complex is 
+	 * converted only once per pathway; when it is referred to again as a member 
+	 * of another complex, a single alias data node is added instead of a copy.
+	 */
+	public void setFlyweightComplexes(boolean flyweightComplexes) {
+		this.flyweightComplexes = flyweightComplexes;
+	}
+	
+	/**
+	 * Dynamic property that links an alias data node to the group id of the
+	 * complex it stands for, see {@link #setFlyweightComplexes(boolean)}.
+	 */
+	public static final String ALIAS_OF = "org.pathvisio.biopax3.AliasOf";
+	
+	/**
+	 * Converts a member of a complex in flyweight mode.
+	 * Simple members are still copied, a GPML element can only be in one group.
+	 */
+	private PathwayElement mapComplexMember(ConversionContext ctx, PhysicalEntity ep) {
+		if (!(ep instanceof Complex)) return mapEntity(ctx, ep, true);
+		PathwayElement existing = getConverted(ctx, ep);
+		if (existing == null) return mapEntity(ctx, ep, false);
+		
+		PathwayElement alias = PathwayElement.createPathwayElement(ObjectType.DATANODE);
+		String name = getTextLabel((Complex)ep);
+		alias.setTextLabel(name == null ? existing.getTextLabel() : pooled(name));
+		alias.setDataNodeType(DataNodeType.COMPLEX);
+		alias.setInitialSize();
+		alias.setMWidth(6 * (alias.getTextLabel().length()+2));
+		alias.setDynamicProperty(ALIAS_OF, existing.getGroupId());
+		alias.addBiopaxRef(ep.getRDFId());
+		ctx.getPathway().add(alias);
+		return alias;
+	}
+	
 	/**
 	 * Stacks all elements in a GPML group.
+	 * The members are taken from {@link ConversionContext#getGroups()}.
 	 */
-	protected void stackGroup(PathwayElement group) {
+	protected void stackGroup(ConversionContext ctx, PathwayElement group) {
 		Pathway p = group.getParent();
 		if(p != null) {
-			Set<PathwayElement> groupElements = p.getGroupElements(group.getGroupId());
-			List<PathwayElement> sorted = new ArrayList<PathwayElement>(groupElements);
+			List<PathwayElement> sorted = new ArrayList<PathwayElement>(
+					ctx.getGroups().getGroupElements(group.getGroupId()));
 			Collections.sort(
 					sorted,
 					new Comparator<PathwayElement>() {
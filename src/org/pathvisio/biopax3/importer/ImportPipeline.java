@@ -0,0 +1,228 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdom.JDOMException;
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.Pathway;
+
+/**
+ * Imports a list of BioPAX files in two overlapping stages:
+ * <ol>
+ * <li>PARSE: read a file into a BioPAX model, on a background thread.
+ * <li>CONVERT: convert the pathways of the model with {@link ImportHelper#convertEach(PathwayHandler)},
+ * on the calling thread.
+ * </ol>
+ * The next file is parsed while the pathways of the current one are converted.
+ * At most one parsed model waits for conversion, so parsing blocks instead of 
+ * filling up memory. The overlap is only between files, so this only pays off for 
+ * batches of files; single file imports, such as BiopaxFormat.doImport, don't use it.
+ * <p>
+ * Converted pathways are handed to a {@link PathwayHandler} on the calling thread, in 
+ * file and model order: the same pathways as {@link ImportHelper#convertEach(PathwayHandler)}.
+ * Subclasses can override {@link #createHelper(File)} to configure the importer.
+ */
+public class ImportPipeline
+{
+	/**
+	 * The stages of the pipeline.
+	 */
+	public enum Stage { PARSE, CONVERT }
+
+	private final PathwayHandler handler;
+	private ReaderBackend backend = ReaderBackend.STAX;
+
+	private final AtomicLong[] stageNanos = new AtomicLong[Stage.values().length];
+	private final AtomicLong[] stageItems = new AtomicLong[Stage.values().length];
+
+	public ImportPipeline(PathwayHandler handler)
+	{
+		this.handler = handler;
+		for (int i = 0; i < stageNanos.length; i++)
+		{
+			stageNanos[i] = new AtomicLong();
+			stageItems[i] = new AtomicLong();
+		}
+	}
+
+	public void setReaderBackend(ReaderBackend backend)
+	{
+		this.backend = backend;
+	}
+
+	/**
+	 * Time spent working in a stage, excluding the time spent waiting for
+	 * the other stage. The conversion time includes the time spent in the handler.
+	 */
+	public long getStageTime(Stage stage, TimeUnit unit)
+	{
+		return unit.convert(stageNanos[stage.ordinal()].get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Number of items a stage has started on: files for PARSE, pathways for CONVERT.
+	 */
+	public long getStageCount(Stage stage)
+	{
+		return stageItems[stage.ordinal()].get();
+	}
+
+	/**
+	 * Create the importer for a file. Override to set mappers or conversion options.
+	 */
+	protected ImportHelper createHelper(File file) throws JDOMException, IOException, ConverterException
+	{
+		return new ImportHelper(file, backend);
+	}
+
+	/** A parsed file on the queue, or the failure that stopped parsing */
+	private static class Parsed
+	{
+		final ImportHelper helper;
+		final Throwable failure;
+
+		Parsed(ImportHelper helper, Throwable failure)
+		{
+			this.helper = helper;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Import the files, and return when all pathways have been handed to the handler.
+	 * @throws ConverterException when a file can't be read or converted, or the handler
+	 * throws one. The remaining files are not converted.
+	 */
+	public void run(final List<File> files) throws ConverterException, InterruptedException
+	{
+		final BlockingQueue<Parsed> parsed = new ArrayBlockingQueue<Parsed>(1);
+		ExecutorService parser = Executors.newSingleThreadExecutor();
+		parser.execute(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					for (File f : files)
+					{
+						long start = System.nanoTime();
+						stageItems[Stage.PARSE.ordinal()].incrementAndGet();
+						ImportHelper helper = createHelper(f);
+						stageNanos[Stage.PARSE.ordinal()].addAndGet(System.nanoTime() - start);
+						try
+						{
+							parsed.put(new Parsed(helper, null));
+						}
+						catch (InterruptedException ex)
+						{
+							// the conversion has stopped, nobody will take it
+							helper.close();
+							return;
+						}
+					}
+				}
+				catch (Throwable t)
+				{
+					try
+					{
+						parsed.put(new Parsed(null, t));
+					}
+					catch (InterruptedException ex)
+					{
+						Logger.log.warn("Import pipeline stopped, dropping failure", t);
+					}
+				}
+			}
+		});
+
+		try
+		{
+			for (int i = 0; i < files.size(); i++)
+			{
+				Parsed p = parsed.take();
+				if (p.failure != null) rethrow(p.failure);
+				try
+				{
+					convert(p.helper);
+				}
+				finally
+				{
+					// passive elements are only read while converting
+					p.helper.close();
+				}
+			}
+		}
+		finally
+		{
+			parser.shutdownNow();
+			// wait for a file that is being parsed, it can't be put on the queue anymore
+			try
+			{
+				parser.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+			catch (InterruptedException ex)
+			{
+				Logger.log.warn("Interrupted while stopping the import pipeline");
+				Thread.currentThread().interrupt();
+			}
+			for (Parsed p = parsed.poll(); p != null; p = parsed.poll())
+			{
+				if (p.helper != null) p.helper.close();
+			}
+		}
+		Logger.log.info("Import pipeline: parse " + getStageTime(Stage.PARSE, TimeUnit.MILLISECONDS) +
+				" ms, convert " + getStageTime(Stage.CONVERT, TimeUnit.MILLISECONDS) + " ms");
+	}
+
+	private void convert(ImportHelper helper) throws ConverterException
+	{
+		long start = System.nanoTime();
+		try
+		{
+			helper.convertEach(new PathwayHandler() {
+				public void pathwayConverted(Pathway gpmlPathway, org.biopax.paxtools.model.level3.Pathway bpPathway) 
+					throws ConverterException
+				{
+					stageItems[Stage.CONVERT.ordinal()].incrementAndGet();
+					handler.pathwayConverted(gpmlPathway, bpPathway);
+				}
+			});
+		}
+		finally
+		{
+			stageNanos[Stage.CONVERT.ordinal()].addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	private static void rethrow(Throwable t) throws ConverterException
+	{
+		if (t instanceof ConverterException) throw (ConverterException)t;
+		if (t instanceof RuntimeException) throw (RuntimeException)t;
+		if (t instanceof Error) throw (Error)t;
+		throw new ConverterException(t);
+	}
+}
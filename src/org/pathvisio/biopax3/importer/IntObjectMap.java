@@ -0,0 +1,114 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from non-negative int keys to objects,
+ * used for tables keyed by {@link UriDictionary} ids.
+ * Null values are allowed and distinct from absent keys.
+ */
+final class IntObjectMap<V> 
+{
+	private static final int FREE = -1;
+	
+	private int[] keys;
+	private Object[] values;
+	private int size = 0;
+	
+	IntObjectMap()
+	{
+		this(16);
+	}
+	
+	IntObjectMap(int expected)
+	{
+		int capacity = 16;
+		while (capacity < expected * 2) capacity <<= 1;
+		keys = new int[capacity];
+		Arrays.fill(keys, FREE);
+		values = new Object[capacity];
+	}
+	
+	@SuppressWarnings("unchecked")
+	V get(int key)
+	{
+		int slot = find(key);
+		return keys[slot] == FREE ? null : (V)values[slot];
+	}
+	
+	boolean containsKey(int key)
+	{
+		return keys[find(key)] != FREE;
+	}
+	
+	void put(int key, V value)
+	{
+		if (key < 0) throw new IllegalArgumentException("Negative key " + key);
+		int slot = find(key);
+		if (keys[slot] == FREE)
+		{
+			keys[slot] = key;
+			size++;
+			values[slot] = value;
+			if (size * 2 > keys.length) rehash();
+		}
+		else
+		{
+			values[slot] = value;
+		}
+	}
+	
+	int size()
+	{
+		return size;
+	}
+	
+	void clear()
+	{
+		Arrays.fill(keys, FREE);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+	
+	private int find(int key)
+	{
+		int mask = keys.length - 1;
+		int slot = UriDictionary.mix(key) & mask;
+		while (keys[slot] != FREE && keys[slot] != key) slot = (slot + 1) & mask;
+		return slot;
+	}
+	
+	private void rehash()
+	{
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		Arrays.fill(keys, FREE);
+		values = new Object[keys.length];
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldKeys[i] == FREE) continue;
+			int slot = UriDictionary.mix(oldKeys[i]) & mask;
+			while (keys[slot] != FREE) slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+		}
+	}
+}
@@ -0,0 +1,94 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.util.Arrays;
+
+/**
+ * Content key of an interaction, so that copies of the same interaction
+ * under different RDF ids can be found with a single hash lookup.
+ * <p>
+ * The key consists of the BioPAX interface of the interaction and a list of
+ * sections of {@link UriDictionary} ids (e.g. left participants, right participants
+ * and controllers). Each section is sorted, and prefixed with its length
+ * so that different sections can't run into each other.
+ */
+final class InteractionKey
+{
+	private final Class<?> type;
+	private final int[] parts;
+	private final int hash;
+
+	private InteractionKey(Class<?> type, int[] parts)
+	{
+		this.type = type;
+		this.parts = parts;
+		this.hash = 31 * type.hashCode() + Arrays.hashCode(parts);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj) return true;
+		if (!(obj instanceof InteractionKey)) return false;
+		InteractionKey other = (InteractionKey)obj;
+		return hash == other.hash && type == other.type && Arrays.equals(parts, other.parts);
+	}
+
+	/**
+	 * Builds an {@link InteractionKey}.
+	 */
+	static class Builder
+	{
+		private final Class<?> type;
+		private int[] parts = new int[16];
+		private int size = 0;
+
+		Builder(Class<?> type)
+		{
+			this.type = type;
+		}
+
+		/** Add a single value, e.g. an enum ordinal */
+		Builder add(int value)
+		{
+			if (size == parts.length) parts = Arrays.copyOf(parts, size * 2);
+			parts[size++] = value;
+			return this;
+		}
+
+		/** Add a section of ids, order doesn't matter */
+		Builder addSorted(int[] ids)
+		{
+			Arrays.sort(ids);
+			add(ids.length);
+			for (int id : ids) add(id);
+			return this;
+		}
+
+		InteractionKey build()
+		{
+			return new InteractionKey(type, Arrays.copyOf(parts, size));
+		}
+	}
+}
@@ -0,0 +1,155 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.lang.ref.SoftReference;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.pathvisio.core.model.Pathway;
+
+/**
+ * List of GPML pathways that are converted when they are first accessed.
+ * <p>
+ * Converted pathways are held through soft references, so they can be
+ * released when memory runs low and are converted again on the next access.
+ * The most recently used pathways can be kept with a strong reference on top of that.
+ * Because a released pathway is converted again, changes made to a pathway
+ * from this list can be lost; copy it if it needs to be edited.
+ * <p>
+ * Different pathways can be converted on several threads at once. Threads that
+ * ask for a pathway that is being converted wait for that conversion.
+ * @see ImportHelper#convertLazily(int)
+ */
+class LazyPathwayList extends AbstractList<Pathway> implements RandomAccess
+{
+	private final ImportHelper helper;
+	private final List<org.biopax.paxtools.model.level3.Pathway> bpPathways;
+	private final SoftReference<Pathway>[] converted;
+	/** Conversions in progress, guarded by this list like converted and recent */
+	private final FutureTask<Pathway>[] pending;
+	private final Map<Integer, Pathway> recent;
+
+	/**
+	 * @param cacheSize number of recently used pathways to keep regardless
+	 * of memory pressure, 0 to rely on soft references only.
+	 */
+	@SuppressWarnings("unchecked")
+	LazyPathwayList(ImportHelper helper, List<org.biopax.paxtools.model.level3.Pathway> bpPathways, int cacheSize)
+	{
+		this.helper = helper;
+		this.bpPathways = bpPathways;
+		this.converted = new SoftReference[bpPathways.size()];
+		this.pending = new FutureTask[bpPathways.size()];
+		this.recent = cacheSize > 0 ? new LruCache<Integer, Pathway>(cacheSize) : null;
+	}
+
+	/**
+	 * The converted pathway. The lock is only held to look up and store the result,
+	 * not during the conversion itself.
+	 * @throws CancellationException if the thread is interrupted while waiting 
+	 * for a conversion on another thread.
+	 */
+	@Override
+	public Pathway get(final int index)
+	{
+		FutureTask<Pathway> task;
+		boolean owner = false;
+		synchronized (this)
+		{
+			SoftReference<Pathway> ref = converted[index];
+			Pathway result = ref == null ? null : ref.get();
+			if (result != null)
+			{
+				if (recent != null) recent.put(index, result);
+				return result;
+			}
+			task = pending[index];
+			if (task == null)
+			{
+				task = new FutureTask<Pathway>(new Callable<Pathway>() {
+					public Pathway call()
+					{
+						return helper.convertPathway(bpPathways.get(index));
+					}
+				});
+				pending[index] = task;
+				owner = true;
+			}
+		}
+
+		if (owner) task.run();
+		Pathway result = null;
+		try
+		{
+			result = task.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while waiting for pathway " + index);
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+		finally
+		{
+			if (owner)
+			{
+				// a failed conversion is tried again on the next access
+				synchronized (this)
+				{
+					pending[index] = null;
+					if (result != null) converted[index] = new SoftReference<Pathway>(result);
+				}
+			}
+		}
+		synchronized (this)
+		{
+			if (recent != null) recent.put(index, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Release the converted pathways that are not in the cache of recently used ones, 
+	 * as the garbage collector may do when memory runs low.
+	 */
+	synchronized void releaseUnused()
+	{
+		for (int i = 0; i < converted.length; i++)
+		{
+			if (recent == null || !recent.containsKey(i)) converted[i] = null;
+		}
+	}
+
+	@Override
+	public int size()
+	{
+		return bpPathways.size();
+	}
+}
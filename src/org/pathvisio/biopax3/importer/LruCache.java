@@ -0,0 +1,42 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small least-recently-used cache for objects that are shared
+ * between pathways, such as xrefs and entity references.
+ * Not thread safe, callers synchronize on the cache.
+ */
+class LruCache<K, V> extends LinkedHashMap<K, V>
+{
+	private final int maxSize;
+	
+	LruCache(int maxSize)
+	{
+		super(16, 0.75f, true);
+		this.maxSize = maxSize;
+	}
+	
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+	{
+		return size() > maxSize;
+	}
+}
@@ -0,0 +1,89 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.biopax.paxtools.model.BioPAXElement;
+import org.biopax.paxtools.model.Model;
+import org.biopax.paxtools.model.level3.Entity;
+import org.biopax.paxtools.model.level3.Gene;
+import org.biopax.paxtools.model.level3.Interaction;
+import org.biopax.paxtools.model.level3.Pathway;
+import org.biopax.paxtools.model.level3.PathwayStep;
+import org.biopax.paxtools.model.level3.PhysicalEntity;
+
+/**
+ * Index of the elements of a BioPAX model by the interfaces the 
+ * importer cares about. Built with a single pass over the model, 
+ * so that the conversion methods don't have to scan the whole model 
+ * again for every element type.
+ */
+class ModelIndex 
+{
+	private final List<Interaction> interactions = new ArrayList<Interaction>();
+	private final List<Entity> physicalEntities = new ArrayList<Entity>();
+	private final List<Pathway> pathways = new ArrayList<Pathway>();
+	private final List<PathwayStep> pathwaySteps = new ArrayList<PathwayStep>();
+	
+	/** Interactions, physical entities and genes, in model order. */
+	private final List<Entity> convertible = new ArrayList<Entity>();
+	
+	/**
+	 * Index the model, and assign a dictionary id to every element.
+	 */
+	ModelIndex(Model model, UriDictionary dictionary)
+	{
+		for (BioPAXElement e : model.getObjects())
+		{
+			dictionary.intern(e.getRDFId());
+			if (e instanceof Interaction)
+			{
+				interactions.add((Interaction)e);
+				convertible.add((Interaction)e);
+			}
+			else if (e instanceof PhysicalEntity || e instanceof Gene)
+			{
+				physicalEntities.add((Entity)e);
+				convertible.add((Entity)e);
+			}
+			else if (e instanceof Pathway)
+			{
+				pathways.add((Pathway)e);
+			}
+			else if (e instanceof PathwayStep)
+			{
+				pathwaySteps.add((PathwayStep)e);
+			}
+		}
+	}
+	
+	/** All Interaction instances, including Conversion and Control subtypes */
+	List<Interaction> getInteractions() { return Collections.unmodifiableList(interactions); }
+	
+	/** All PhysicalEntity and Gene instances */
+	List<Entity> getPhysicalEntities() { return Collections.unmodifiableList(physicalEntities); }
+	
+	List<Pathway> getPathways() { return Collections.unmodifiableList(pathways); }
+	
+	List<PathwayStep> getPathwaySteps() { return Collections.unmodifiableList(pathwaySteps); }
+	
+	/** All interactions, physical entities and genes, in model order */
+	List<Entity> getConvertible() { return Collections.unmodifiableList(convertible); }
+}
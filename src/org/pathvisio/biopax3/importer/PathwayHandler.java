@@ -0,0 +1,38 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.Pathway;
+
+/**
+ * Implement this interface to receive pathways from 
+ * {@link ImportHelper#convertEach(PathwayHandler)} as soon as
+ * they are converted.
+ */
+public interface PathwayHandler 
+{
+	/**
+	 * Called once for each converted pathway. The importer keeps no
+	 * reference to the GPML pathway after this method returns.
+	 * @param gpmlPathway The converted GPML pathway
+	 * @param bpPathway The BioPAX pathway it was converted from, or null if
+	 * the model has no pathway entities and was converted as a whole
+	 * @throws ConverterException to stop the conversion
+	 */
+	public void pathwayConverted(Pathway gpmlPathway, org.biopax.paxtools.model.level3.Pathway bpPathway) throws ConverterException;
+}
@@ -0,0 +1,192 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.pathvisio.core.model.GpmlFormat;
+
+/**
+ * Lists the pathways in a BioPAX file without building a model.
+ * <p>
+ * The file is streamed once with StAX, and only bp:Pathway resources
+ * and their displayName and name properties are looked at. This is 
+ * fast enough to present a choice of pathways to the user before the
+ * (much slower) full import starts.
+ */
+public class PathwayScanner 
+{
+	public static final String BIOPAX_L3_NS = "http://www.biopax.org/release/biopax-level3.owl#";
+	
+	/**
+	 * Summary of a single bp:Pathway resource.
+	 */
+	public static class PathwayInfo
+	{
+		private final String rdfId;
+		private String displayName;
+		private final List<String> names = new ArrayList<String>();
+		
+		PathwayInfo(String rdfId)
+		{
+			this.rdfId = rdfId;
+		}
+		
+		/** The rdf:ID (prefixed with the document base, if any) or rdf:about of the pathway */
+		public String getRdfId() { return rdfId; }
+		
+		/** The displayName property, or null if not set */
+		public String getDisplayName() { return displayName; }
+		
+		/** All name properties, in document order */
+		public List<String> getNames() { return names; }
+	}
+	
+	/**
+	 * Scan a BioPAX file for pathways. Gzip and zip compressed files are
+	 * decompressed on the fly, see {@link Compression}.
+	 */
+	public static List<PathwayInfo> scan(File biopaxFile) throws IOException
+	{
+		InputStream raw = new BufferedInputStream(new FileInputStream(biopaxFile));
+		try
+		{
+			InputStream in = Compression.decompress(raw);
+			try
+			{
+				return scan(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		finally
+		{
+			raw.close();
+		}
+	}
+
+	/**
+	 * Scan a BioPAX stream for pathways. The stream is not closed.
+	 */
+	public static List<PathwayInfo> scan(InputStream in) throws IOException
+	{
+		List<PathwayInfo> result = new ArrayList<PathwayInfo>();
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		// keep the internal subset, BioPAX exports often declare entities such as &xsd; there,
+		// but never fetch external entities or DTDs
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setXMLResolver(new XMLResolver() {
+			public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace)
+			{
+				return new ByteArrayInputStream(new byte[0]);
+			}
+		});
+		
+		// pathways currently open, with their element depth
+		LinkedList<PathwayInfo> open = new LinkedList<PathwayInfo>();
+		LinkedList<Integer> openDepth = new LinkedList<Integer>();
+		String base = null;
+		int depth = 0;
+		try
+		{
+			XMLStreamReader r = factory.createXMLStreamReader(in);
+			while (r.hasNext())
+			{
+				int event = r.next();
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					depth++;
+					if (depth == 1)
+					{
+						base = r.getAttributeValue(XMLConstants.XML_NS_URI, "base");
+					}
+					else if (isBiopax(r, "Pathway"))
+					{
+						String id = r.getAttributeValue(GpmlFormat.RDF.getURI(), "ID");
+						if (id != null) 
+						{
+							if (base != null) id = base + "#" + id;
+						}
+						else
+						{
+							id = r.getAttributeValue(GpmlFormat.RDF.getURI(), "about");
+						}
+						// a reference like <bp:Pathway rdf:resource="..."/> is not a definition
+						if (id == null) continue;
+						PathwayInfo info = new PathwayInfo(id);
+						result.add(info);
+						open.addFirst(info);
+						openDepth.addFirst(depth);
+					}
+					else if (!open.isEmpty() && depth == openDepth.getFirst() + 1)
+					{
+						if (isBiopax(r, "displayName"))
+						{
+							open.getFirst().displayName = r.getElementText().trim();
+							depth--;
+						}
+						else if (isBiopax(r, "name"))
+						{
+							open.getFirst().names.add(r.getElementText().trim());
+							depth--;
+						}
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					if (!openDepth.isEmpty() && depth == openDepth.getFirst())
+					{
+						open.removeFirst();
+						openDepth.removeFirst();
+					}
+					depth--;
+				}
+			}
+			r.close();
+		}
+		catch (XMLStreamException ex)
+		{
+			IOException ioe = new IOException("Could not scan BioPAX file: " + ex.getMessage());
+			ioe.initCause(ex);
+			throw ioe;
+		}
+		return result;
+	}
+
+	private static boolean isBiopax(XMLStreamReader r, String localName)
+	{
+		return localName.equals(r.getLocalName()) && BIOPAX_L3_NS.equals(r.getNamespaceURI());
+	}
+}
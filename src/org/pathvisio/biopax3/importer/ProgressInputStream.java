@@ -0,0 +1,75 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from the underlying stream, and reports
+ * the count after every read.
+ */
+abstract class ProgressInputStream extends FilterInputStream
+{
+	private long count = 0;
+
+	ProgressInputStream(InputStream in)
+	{
+		super(in);
+	}
+
+	/**
+	 * Called after every read or skip.
+	 * May throw an (unchecked) exception to stop reading.
+	 * @param count total number of bytes read so far
+	 */
+	abstract void bytesRead(long count);
+
+	@Override
+	public int read() throws IOException
+	{
+		int result = super.read();
+		if (result >= 0) count++;
+		bytesRead(count);
+		return result;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		int result = super.read(b, off, len);
+		if (result > 0) count += result;
+		bytesRead(count);
+		return result;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		long result = super.skip(n);
+		count += result;
+		bytesRead(count);
+		return result;
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+}
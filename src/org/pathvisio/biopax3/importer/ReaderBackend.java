@@ -0,0 +1,79 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.io.InputStream;
+
+import org.biopax.paxtools.io.SimpleIOHandler;
+import org.biopax.paxtools.io.jena.JenaIOHandler;
+import org.biopax.paxtools.model.BioPAXLevel;
+import org.biopax.paxtools.model.Model;
+import org.pathvisio.core.debug.Logger;
+
+/**
+ * The paxtools readers that {@link ImportHelper} can use to build
+ * the BioPAX model.
+ */
+public enum ReaderBackend
+{
+	/**
+	 * Streaming StAX reader, fills the model directly through the 
+	 * BioPAX EditorMap without building an intermediate RDF graph.
+	 */
+	STAX {
+		public Model read(InputStream in)
+		{
+			return new SimpleIOHandler(BioPAXLevel.L3).convertFromOWL(in);
+		}
+	},
+	
+	/**
+	 * Jena based reader, builds a complete RDF graph first.
+	 * Slower and more memory hungry, but more lenient towards
+	 * unusual RDF/XML serializations.
+	 */
+	JENA {
+		public Model read(InputStream in)
+		{
+			return new JenaIOHandler(BioPAXLevel.L3.getDefaultFactory(), BioPAXLevel.L3).convertFromOWL(in);
+		}
+	};
+	
+	/**
+	 * Read a BioPAX model from the given stream.
+	 * The stream is not closed.
+	 */
+	public abstract Model read(InputStream in);
+	
+	/**
+	 * Look up a backend by name, ignoring case. Falls back to {@link #STAX}
+	 * for unknown or empty names.
+	 */
+	public static ReaderBackend fromName(String name)
+	{
+		if (name == null || name.trim().length() == 0) return STAX;
+		try
+		{
+			return valueOf(name.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException ex)
+		{
+			Logger.log.warn("Unknown BioPAX reader '" + name + "', using " + STAX);
+			return STAX;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.biopax.paxtools.model.level3.Control;
+import org.biopax.paxtools.model.level3.Controller;
+import org.biopax.paxtools.model.level3.Conversion;
+import org.biopax.paxtools.model.level3.Entity;
+import org.biopax.paxtools.model.level3.Interaction;
+import org.biopax.paxtools.model.level3.PhysicalEntity;
+import org.biopax.paxtools.model.level3.SimplePhysicalEntity;
+import org.biopax.paxtools.model.level3.Xref;
+
+/**
+ * Decides which physical entities are replicated, i.e. get a separate GPML
+ * data node for every interaction they take part in instead of one shared node.
+ * <p>
+ * Currency metabolites such as ATP, H2O and NADH take part in hundreds of reactions;
+ * as a single node they become hubs that make the pathway unreadable and the layout slow.
+ * An entity is replicated when it takes part in at least {@link #getDegreeThreshold()}
+ * interactions, or when one of its ChEBI or KEGG xrefs is in the blocklist.
+ * @see ImportHelper#setReplicationPolicy(ReplicationPolicy)
+ */
+public class ReplicationPolicy
+{
+	/**
+	 * Common currency metabolites: water, protons, phosphates, ATP/ADP/AMP,
+	 * NAD(P)(H), CoA and CO2, as ChEBI and KEGG compound ids.
+	 */
+	public static final Set<String> CURRENCY_METABOLITES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+		"CHEBI:15377", "CHEBI:15378", "CHEBI:18367", "CHEBI:43474", "CHEBI:29888", "CHEBI:33019",
+		"CHEBI:15422", "CHEBI:30616", "CHEBI:16761", "CHEBI:456216", "CHEBI:16027", "CHEBI:456215",
+		"CHEBI:15846", "CHEBI:57540", "CHEBI:16908", "CHEBI:57945", "CHEBI:18009", "CHEBI:58349",
+		"CHEBI:16474", "CHEBI:57783", "CHEBI:15346", "CHEBI:57287", "CHEBI:16526",
+		"C00001", "C00080", "C00009", "C00013", "C00002", "C00008", "C00020",
+		"C00003", "C00004", "C00006", "C00005", "C00010", "C00011"
+	)));
+
+	private final int degreeThreshold;
+	private final Set<String> blocklist = new HashSet<String>();
+
+	/**
+	 * @param degreeThreshold replicate entities that take part in at least this
+	 * many interactions, or 0 to not look at the degree.
+	 * @param blocklist ChEBI ids (with or without the "CHEBI:" prefix) or KEGG compound
+	 * ids of entities that are always replicated, may be empty.
+	 */
+	public ReplicationPolicy(int degreeThreshold, Collection<String> blocklist)
+	{
+		this.degreeThreshold = degreeThreshold;
+		for (String id : blocklist) this.blocklist.add(normalizeId(id));
+	}
+
+	public int getDegreeThreshold()
+	{
+		return degreeThreshold;
+	}
+
+	/**
+	 * Find the entities to replicate, with a single pass over the interactions.
+	 * @return the dictionary ids of the entities to replicate
+	 */
+	BitSet compute(List<Interaction> interactions, UriDictionary dictionary)
+	{
+		int[] degree = new int[dictionary.size()];
+		BitSet seen = new BitSet();
+		BitSet result = new BitSet();
+		Set<Entity> participants = new HashSet<Entity>();
+		for (Interaction i : interactions)
+		{
+			participants.clear();
+			participants.addAll(i.getParticipant());
+			if (i instanceof Conversion)
+			{
+				participants.addAll(((Conversion)i).getLeft());
+				participants.addAll(((Conversion)i).getRight());
+			}
+			else if (i instanceof Control)
+			{
+				for (Controller c : ((Control)i).getController())
+				{
+					if (c instanceof Entity) participants.add((Entity)c);
+				}
+			}
+			for (Entity e : participants)
+			{
+				if (!(e instanceof PhysicalEntity)) continue;
+				int id = dictionary.get(e.getRDFId());
+				if (id < 0 || id >= degree.length) continue;
+
+				degree[id]++;
+				if (degreeThreshold > 0 && degree[id] >= degreeThreshold) result.set(id);
+				if (!seen.get(id))
+				{
+					seen.set(id);
+					if (isBlocked((PhysicalEntity)e)) result.set(id);
+				}
+			}
+		}
+		return result;
+	}
+
+	private boolean isBlocked(PhysicalEntity e)
+	{
+		if (blocklist.isEmpty()) return false;
+		if (isBlocked(e.getXref())) return true;
+		if (e instanceof SimplePhysicalEntity)
+		{
+			SimplePhysicalEntity spe = (SimplePhysicalEntity)e;
+			if (spe.getEntityReference() != null && isBlocked(spe.getEntityReference().getXref())) return true;
+		}
+		return false;
+	}
+
+	private boolean isBlocked(Set<Xref> xrefs)
+	{
+		for (Xref x : xrefs)
+		{
+			if (x.getDb() == null || x.getId() == null) continue;
+			String db = x.getDb().toLowerCase();
+			if (db.indexOf("chebi") < 0 && db.indexOf("kegg") < 0) continue;
+			if (blocklist.contains(normalizeId(x.getId()))) return true;
+		}
+		return false;
+	}
+
+	/** Upper case, without the "CHEBI:" prefix */
+	private static String normalizeId(String id)
+	{
+		String result = id.trim().toUpperCase();
+		return result.startsWith("CHEBI:") ? result.substring(6) : result;
+	}
+}
@@ -0,0 +1,109 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.util.Arrays;
+
+/**
+ * Assigns a compact int to each RDF:ID / rdf:about URI, so that 
+ * the importer can key its tables on ints and store each URI string only once.
+ * <p>
+ * Ids are assigned from 0 upwards in order of first use.
+ * Interning is not thread safe, but once all URIs are interned
+ * the dictionary may be read from several threads.
+ */
+final class UriDictionary 
+{
+	private static final int NOT_FOUND = -1;
+	
+	private String[] uris = new String[1024];
+	/** open addressing table of id + 1, 0 marks a free slot */
+	private int[] table = new int[2048];
+	private int size = 0;
+	
+	/**
+	 * Get the id of the given uri, assigning a new one if needed.
+	 */
+	int intern(String uri)
+	{
+		int slot = find(uri);
+		if (table[slot] != 0) return table[slot] - 1;
+		
+		int id = size++;
+		if (id == uris.length) uris = Arrays.copyOf(uris, uris.length * 2);
+		uris[id] = uri;
+		table[slot] = id + 1;
+		if (size * 2 > table.length) rehash();
+		return id;
+	}
+	
+	/**
+	 * Get the id of the given uri.
+	 * @return the id, or -1 if the uri was never interned.
+	 */
+	int get(String uri)
+	{
+		if (uri == null) return NOT_FOUND;
+		int slot = find(uri);
+		return table[slot] - 1;
+	}
+	
+	/** The uri for the given id */
+	String getUri(int id)
+	{
+		return uris[id];
+	}
+	
+	int size()
+	{
+		return size;
+	}
+	
+	private int find(String uri)
+	{
+		int mask = table.length - 1;
+		int slot = mix(uri.hashCode()) & mask;
+		while (true)
+		{
+			int entry = table[slot];
+			if (entry == 0) return slot;
+			String other = uris[entry - 1];
+			if (other == uri || other.equals(uri)) return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	private void rehash()
+	{
+		int[] newTable = new int[table.length * 2];
+		int mask = newTable.length - 1;
+		for (int entry : table)
+		{
+			if (entry == 0) continue;
+			int slot = mix(uris[entry - 1].hashCode()) & mask;
+			while (newTable[slot] != 0) slot = (slot + 1) & mask;
+			newTable[slot] = entry;
+		}
+		table = newTable;
+	}
+	
+	static int mix(int h)
+	{
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
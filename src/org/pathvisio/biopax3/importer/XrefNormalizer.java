@@ -0,0 +1,297 @@
+// PathVisio,
+// a tool for data visualization and analysis using Biological Pathways
+// Copyright 2006-2015 BiGCaT Bioinformatics
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); 
+// you may not use this file except in compliance with the License. 
+// You may obtain a copy of the License at 
+// 
+// http://www.apache.org/licenses/LICENSE-2.0 
+//  
+// Unless required by applicable law or agreed to in writing, software 
+// distributed under the License is distributed on an "AS IS" BASIS, 
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+// See the License for the specific language governing permissions and 
+// limitations under the License.
+//
+package org.pathvisio.biopax3.importer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bridgedb.BridgeDb;
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapper;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+
+/**
+ * Rewrites the xrefs of imported data nodes to a list of preferred
+ * DataSources (e.g. Ensembl for genes and ChEBI for metabolites).
+ * <p>
+ * All xrefs of a pathway that are not yet in a preferred DataSource are
+ * mapped in a single {@link IDMapper#mapID(java.util.Collection, DataSource...)} call,
+ * instead of one query per data node. Results, including xrefs without any mapping,
+ * are remembered in a tab separated cache file, so that a later import of the same
+ * data does not need the mapping database at all. The cache file is only valid for
+ * one mapping database and list of targets, see {@link #getCacheFile(File, String, DataSource...)}.
+ * @see ImportHelper#setXrefNormalizer(XrefNormalizer)
+ */
+public class XrefNormalizer
+{
+	private final IDMapper mapper;
+	private final DataSource[] targets;
+	private final Set<DataSource> targetSet = new HashSet<DataSource>();
+	private final File cacheFile;
+
+	/** Source xref to mapped xref, or to NO_MAPPING */
+	private final Map<Xref, Xref> cache = new HashMap<Xref, Xref>();
+	private static final Xref NO_MAPPING = new Xref("", null);
+
+	/**
+	 * @param mapper the mapper to query for xrefs that are not in the cache.
+	 * @param cacheFile file to keep mapping results in, or null for an in-memory cache only.
+	 * @param targets the preferred DataSources, in order of preference.
+	 */
+	public XrefNormalizer(IDMapper mapper, File cacheFile, DataSource... targets)
+	{
+		this.mapper = mapper;
+		this.cacheFile = cacheFile;
+		this.targets = targets;
+		for (DataSource ds : targets) targetSet.add(ds);
+		if (cacheFile != null && cacheFile.exists()) readCache();
+	}
+
+	/**
+	 * Connect to a BridgeDb mapping database, e.g. a local Derby file.
+	 * @param connectString a BridgeDb connection string, or the path of a .bridge file.
+	 * @param cacheFile see {@link #XrefNormalizer(IDMapper, File, DataSource...)}
+	 * @param targets see {@link #XrefNormalizer(IDMapper, File, DataSource...)}
+	 */
+	public static XrefNormalizer connect(String connectString, File cacheFile, DataSource... targets) throws IDMapperException
+	{
+		if (connectString.indexOf(':') < 2)
+		{
+			// a plain file name (also c:\...), assume a Derby database
+			try {
+				Class.forName("org.bridgedb.rdb.IDMapperRdb");
+			} catch (ClassNotFoundException e) {
+				throw new IDMapperException(e);
+			}
+			connectString = "idmapper-pgdb:" + connectString;
+		}
+		return new XrefNormalizer(BridgeDb.connect(connectString), cacheFile, targets);
+	}
+
+	/**
+	 * The cache file for a mapping database and list of targets. Mapping results
+	 * depend on both, so each combination gets its own file, named after a 
+	 * SHA-1 hash of the settings, like the keys of the import cache.
+	 * @param dir the directory to keep cache files in
+	 */
+	public static File getCacheFile(File dir, String connectString, DataSource... targets)
+	{
+		StringBuilder settings = new StringBuilder(connectString);
+		for (DataSource ds : targets) settings.append("\t").append(ds.getSystemCode());
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+			digest.update(settings.toString().getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+		StringBuilder name = new StringBuilder("biopax-xref-cache-");
+		for (byte b : digest.digest())
+		{
+			name.append(Character.forDigit((b >> 4) & 0xF, 16));
+			name.append(Character.forDigit(b & 0xF, 16));
+		}
+		return new File(dir, name.append(".txt").toString());
+	}
+
+	/**
+	 * Close the mapping database. Mappings that are already cached
+	 * can still be used, other xrefs are left as they are.
+	 */
+	public void close()
+	{
+		synchronized (mapper) {
+			try {
+				mapper.close();
+			} catch (IDMapperException e) {
+				Logger.log.warn("Unable to close " + mapper, e);
+			}
+		}
+	}
+
+	/**
+	 * Replace the xrefs of all data nodes in the pathway with their preferred mapping.
+	 * Data nodes without a mapping keep their original xref. Pathways can be normalized 
+	 * on several threads at once; they only wait for each other to read or update the 
+	 * cache, and to query the mapper, which BridgeDb doesn't guarantee to be thread safe.
+	 */
+	public void normalize(Pathway pathway)
+	{
+		List<PathwayElement> nodes = new ArrayList<PathwayElement>();
+		for (PathwayElement elt : pathway.getDataObjects())
+		{
+			if (elt.getObjectType() != ObjectType.DATANODE) continue;
+			Xref xref = elt.getXref();
+			if (xref.getId() == null || xref.getId().length() == 0 ||
+					xref.getDataSource() == null || targetSet.contains(xref.getDataSource())) continue;
+			nodes.add(elt);
+		}
+		Map<Xref, Xref> known = new HashMap<Xref, Xref>();
+		Set<Xref> unresolved = new HashSet<Xref>();
+		synchronized (cache) {
+			for (PathwayElement elt : nodes)
+			{
+				Xref mapped = cache.get(elt.getXref());
+				if (mapped != null) known.put(elt.getXref(), mapped);
+				else unresolved.add(elt.getXref());
+			}
+		}
+		if (!unresolved.isEmpty()) known.putAll(resolve(unresolved));
+
+		int count = 0;
+		for (PathwayElement elt : nodes)
+		{
+			Xref mapped = known.get(elt.getXref());
+			if (mapped == null || mapped == NO_MAPPING) continue;
+			elt.setElementID(mapped.getId());
+			elt.setDataSource(mapped.getDataSource());
+			count++;
+		}
+		Logger.log.info("Normalized " + count + " of " + nodes.size() + " xrefs, " +
+				unresolved.size() + " looked up in " + mapper);
+	}
+
+	/**
+	 * Look up xrefs that are not in the cache, and add the results to the cache.
+	 * @return the mappings, or an empty map if the mapper is not available
+	 */
+	private Map<Xref, Xref> resolve(Set<Xref> unresolved)
+	{
+		Map<Xref, Set<Xref>> result;
+		synchronized (mapper) {
+			try {
+				if (!mapper.isConnected()) return new HashMap<Xref, Xref>();
+				result = mapper.mapID(unresolved, targets);
+			} catch (IDMapperException e) {
+				// leave them unresolved, they will be tried again with the next pathway
+				Logger.log.error("Unable to map " + unresolved.size() + " xrefs", e);
+				return new HashMap<Xref, Xref>();
+			}
+		}
+
+		Map<Xref, Xref> added = new HashMap<Xref, Xref>();
+		for (Xref src : unresolved)
+		{
+			Set<Xref> mapped = result.get(src);
+			added.put(src, mapped == null ? NO_MAPPING : choose(mapped));
+		}
+		synchronized (cache) {
+			cache.putAll(added);
+			// appended under the same lock, so lines of different pathways don't mix
+			if (cacheFile != null) appendCache(added);
+		}
+		return added;
+	}
+
+	/** The mapping in the most preferred DataSource, with the lowest id to make the result stable */
+	private Xref choose(Set<Xref> mapped)
+	{
+		for (DataSource ds : targets)
+		{
+			Xref best = null;
+			for (Xref x : mapped)
+			{
+				if (ds.equals(x.getDataSource()) && (best == null || x.getId().compareTo(best.getId()) < 0)) best = x;
+			}
+			if (best != null) return best;
+		}
+		return NO_MAPPING;
+	}
+
+	/*
+	 * Cache file format: one line per source xref,
+	 * "srcCode<TAB>srcId<TAB>tgtCode<TAB>tgtId", with empty target fields for no mapping.
+	 * Lines are only appended, a later line for the same xref wins.
+	 */
+
+	private void readCache()
+	{
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					String[] fields = line.split("\t", -1);
+					if (fields.length != 4) continue;
+					Xref src = new Xref(fields[1], DataSource.getBySystemCode(fields[0]));
+					cache.put(src, fields[2].length() == 0 ? NO_MAPPING :
+						new Xref(fields[3], DataSource.getBySystemCode(fields[2])));
+				}
+			} finally {
+				reader.close();
+			}
+			Logger.log.info("Read " + cache.size() + " xref mappings from " + cacheFile);
+		} catch (IOException e) {
+			Logger.log.error("Unable to read xref mapping cache " + cacheFile, e);
+		}
+	}
+
+	private void appendCache(Map<Xref, Xref> added)
+	{
+		try {
+			File dir = cacheFile.getParentFile();
+			if (dir != null) dir.mkdirs();
+			Writer writer = new OutputStreamWriter(new FileOutputStream(cacheFile, true), "UTF-8");
+			try {
+				for (Map.Entry<Xref, Xref> e : added.entrySet())
+				{
+					Xref src = e.getKey();
+					Xref tgt = e.getValue();
+					if (!isStorable(src) || (tgt != NO_MAPPING && !isStorable(tgt))) continue;
+					writer.write(src.getDataSource().getSystemCode() + "\t" + src.getId() + "\t");
+					if (tgt != NO_MAPPING) writer.write(tgt.getDataSource().getSystemCode() + "\t" + tgt.getId());
+					else writer.write("\t");
+					writer.write("\n");
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			Logger.log.error("Unable to write xref mapping cache " + cacheFile, e);
+		}
+	}
+
+	/** DataSources without a system code can't be read back, those mappings are kept in memory only */
+	private static boolean isStorable(Xref x)
+	{
+		String code = x.getDataSource().getSystemCode();
+		return code != null && code.length() > 0 && x.getId().indexOf('\t') < 0 && x.getId().indexOf('\n') < 0;
+	}
+}
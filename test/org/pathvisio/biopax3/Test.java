@@ -1,14 +1,61 @@
 package org.pathvisio.biopax3;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapper;
+import org.bridgedb.IDMapperCapabilities;
+import org.bridgedb.Xref;
+import org.jdom.Document;
 import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
 import org.pathvisio.biopax3.exporter.ExportHelper;
+import org.pathvisio.biopax3.importer.Compression;
+import org.pathvisio.biopax3.importer.EntityCollapse;
 import org.pathvisio.biopax3.importer.ImportHelper;
+import org.pathvisio.biopax3.importer.ImportPipeline;
+import org.pathvisio.biopax3.importer.PathwayHandler;
+import org.pathvisio.biopax3.importer.PathwayScanner;
+import org.pathvisio.biopax3.importer.PathwayScanner.PathwayInfo;
+import org.pathvisio.biopax3.importer.ReaderBackend;
+import org.pathvisio.biopax3.importer.ReplicationPolicy;
+import org.pathvisio.biopax3.importer.XrefNormalizer;
 import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.GpmlFormat;
+import org.pathvisio.core.model.ObjectType;
 import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.core.model.PathwayElement.MAnchor;
+import org.pathvisio.core.util.ProgressKeeper;
 import org.pathvisio.core.view.MIMShapes;
 
 import junit.framework.TestCase;
@@ -16,12 +63,45 @@ import junit.framework.TestCase;
 public class Test extends TestCase 
 {
 
+	/** Spool files of {@link ImportHelper} that existed before the test */
+	private Set<String> spooled;
+	
 	public void setUp()
 	{
 		MIMShapes.registerShapes();
+		spooled = spoolFiles(TMP_DIR, "biopax-index");
+	}
+	
+	/**
+	 * Each test closes its importers, so it leaves no spool files behind. 
+	 * Leftovers are deleted, so that they don't fail the next test as well.
+	 */
+	public void tearDown()
+	{
+		Set<String> leaked = spoolFiles(TMP_DIR, "biopax-index");
+		leaked.removeAll(spooled);
+		for (String name : leaked) new File(TMP_DIR, name).delete();
+		assertEquals (Collections.<String>emptySet(), leaked);
+	}
+	
+	private static final File TMP_DIR = new File(System.getProperty("java.io.tmpdir"));
+	
+	/** Convert the whole document and close the importer */
+	private static Pathway convertAll(ImportHelper helper) throws ConverterException
+	{
+		try
+		{
+			return helper.convertAll();
+		}
+		finally
+		{
+			helper.close();
+		}
 	}
 	
-	private static final File EXAMPLE = new File("testData/exemple_l3.owl"); 
+	private static final File EXAMPLE = new File("testData/exemple_l3.owl");
+	/** Four small pathways that share elements, with a DOCTYPE that declares entities */
+	private static final File PATHWAYS = new File("testData/pathways.owl"); 
 	
 	public void testFiles()
 	{
@@ -43,11 +123,1005 @@ public class Test extends TestCase
 		System.out.println("size : "+pathway_list.size());
 		
 		List<Pathway> pathways = bpf.convert();
+		bpf.close();
 		
 		assertTrue (pathways.get(0).getDataObjects().size() > 10);
 		
 	}
 	
+	public void testReaderBackends() throws JDOMException, IOException, ConverterException
+	{
+		// both readers should see the same pathways, and result in the same GPML
+		ImportHelper stax = new ImportHelper(EXAMPLE, ReaderBackend.STAX);
+		ImportHelper jena = new ImportHelper(EXAMPLE);
+		assertEquals (jena.getPathways().size(), stax.getPathways().size());
+		Pathway fromStax = stax.convertAll();
+		Pathway fromJena = jena.convertAll();
+		for (ObjectType type : ObjectType.values())
+		{
+			assertEquals (type.toString(), count(fromJena, type), count(fromStax, type));
+		}
+		assertEquals (xrefsAndRefs(fromJena), xrefsAndRefs(fromStax));
+		stax.close();
+		jena.close();
+		assertEquals (ReaderBackend.STAX, ReaderBackend.fromName("stax"));
+		assertEquals (ReaderBackend.STAX, ReaderBackend.fromName("unknown"));
+	}
+	
+	/** Sorted xrefs of the data nodes and BiopaxRefs of all elements */
+	private static List<String> xrefsAndRefs(Pathway pwy)
+	{
+		List<String> result = new ArrayList<String>();
+		for (PathwayElement elt : pwy.getDataObjects())
+		{
+			if (elt.getObjectType() == ObjectType.DATANODE) result.add("xref " + elt.getXref());
+			for (String ref : elt.getBiopaxRefs()) result.add(elt.getObjectType() + " " + ref);
+		}
+		Collections.sort(result);
+		return result;
+	}
+	
+	public void testConvertEach() throws JDOMException, IOException, ConverterException
+	{
+		ImportHelper bpf = new ImportHelper(EXAMPLE);
+		final List<Pathway> received = new ArrayList<Pathway>();
+		final List<org.biopax.paxtools.model.level3.Pathway> sources = new ArrayList<org.biopax.paxtools.model.level3.Pathway>();
+		bpf.convertEach(new PathwayHandler() {
+			public void pathwayConverted(Pathway gpmlPathway, org.biopax.paxtools.model.level3.Pathway bpPathway)
+			{
+				received.add(gpmlPathway);
+				sources.add(bpPathway);
+			}
+		});
+		// the same pathways as convert(), nested ones included
+		List<Pathway> expected = bpf.convert();
+		bpf.close();
+		assertEquals (expected.size(), received.size());
+		assertEquals (bpf.getPathways(), sources);
+		for (int i = 0; i < expected.size(); i++)
+		{
+			assertEquals (expected.get(i).getDataObjects().size(), received.get(i).getDataObjects().size());
+		}
+	}
+	
+	public void testImportCache() throws JDOMException, IOException, ConverterException
+	{
+		File dir = File.createTempFile("biopax-cache", "");
+		dir.delete();
+		ImportCache cache = new ImportCache(dir, Long.MAX_VALUE);
+		String key = cache.getKey(EXAMPLE);
+		assertEquals (key, cache.getKey(EXAMPLE));
+		assertNull (cache.get(key));
+		
+		Pathway pwy = convertAll(new ImportHelper(EXAMPLE));
+		cache.put(key, pwy);
+		Pathway cached = cache.get(key);
+		assertNotNull (cached);
+		assertEquals (pwy.getDataObjects().size(), cached.getDataObjects().size());
+		
+		// a cache that can't hold anything evicts immediately
+		ImportCache tiny = new ImportCache(dir, 0);
+		tiny.put(key, pwy);
+		assertNull (tiny.get(key));
+
+		// the key changes with the settings, and when the file is modified
+		assertFalse (key.equals(cache.getKey(EXAMPLE, "reader=JENA")));
+		File copy = new File(dir, "copy.owl");
+		OutputStream out = new FileOutputStream(copy);
+		out.write(readBytes(EXAMPLE));
+		out.close();
+		copy.setLastModified(1000000000000L);
+		String copyKey = cache.getKey(copy);
+		copy.setLastModified(2000000000000L);
+		assertFalse (copyKey.equals(cache.getKey(copy)));
+
+		for (File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+	
+	public void testPathwayScanner() throws JDOMException, IOException, ConverterException
+	{
+		List<PathwayInfo> infos = PathwayScanner.scan(EXAMPLE);
+		ImportHelper bpf = new ImportHelper(EXAMPLE);
+		assertEquals (bpf.getPathways().size(), infos.size());
+		for (PathwayInfo info : infos)
+		{
+			assertNotNull (bpf.findPathway(info.getRdfId()));
+			assertNotNull (SelectPathwayDialog.namePicker(info));
+		}
+		bpf.close();
+	}
+	
+	public void testPathwayScannerDoctype() throws JDOMException, IOException, ConverterException
+	{
+		// the internal subset declares &xsd;, which the scanner must expand
+		List<PathwayInfo> infos = PathwayScanner.scan(PATHWAYS);
+		assertEquals (4, infos.size());
+		ImportHelper bpf = new ImportHelper(PATHWAYS);
+		assertEquals (bpf.getPathways().size(), infos.size());
+		for (PathwayInfo info : infos)
+		{
+			assertNotNull (bpf.findPathway(info.getRdfId()));
+		}
+		bpf.close();
+		assertEquals ("Hexose phosphorylation", infos.get(0).getDisplayName());
+		assertEquals (Arrays.asList("P4"), infos.get(3).getNames());
+		
+		Pathway selected = new BiopaxFormat().doImport(PATHWAYS, infos.get(3).getRdfId(), null);
+		assertEquals (1, withLabel(selected, "Lactate").size());
+	}
+	
+	public void testImportSelectedPathway() throws ConverterException, IOException
+	{
+		List<PathwayInfo> infos = PathwayScanner.scan(EXAMPLE);
+		assertFalse (infos.isEmpty());
+		BiopaxFormat format = new BiopaxFormat();
+		Pathway selected = format.doImport(EXAMPLE, infos.get(0).getRdfId(), null);
+		assertTrue (selected.getDataObjects().size() > 1);
+		try
+		{
+			format.doImport(EXAMPLE, "#no_such_pathway", null);
+			fail ("Expected ConverterException for an unknown pathway");
+		}
+		catch (ConverterException expected)
+		{
+		}
+	}
+	
+	private static byte[] readBytes(File f) throws IOException
+	{
+		byte[] bytes = new byte[(int)f.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try
+		{
+			in.readFully(bytes);
+		}
+		finally
+		{
+			in.close();
+		}
+		return bytes;
+	}
+	
+	private static int countComments(Pathway pwy)
+	{
+		int result = 0;
+		for (PathwayElement elt : pwy.getDataObjects()) result += elt.getComments().size();
+		return result;
+	}
+	
+	public void testCompactComments() throws JDOMException, IOException, ConverterException
+	{
+		ImportHelper normal = new ImportHelper(EXAMPLE);
+		ImportHelper compact = new ImportHelper(EXAMPLE);
+		compact.setCompactComments(true);
+		Pathway pNormal = normal.convertAll();
+		Pathway pCompact = compact.convertAll();
+		assertEquals (pNormal.getDataObjects().size(), pCompact.getDataObjects().size());
+		assertTrue (countComments(pCompact) < countComments(pNormal));
+		
+		// both conversions run in the same order, so the elements pair up by position
+		Map<String, String> shared = new HashMap<String, String>();
+		for (int i = 0; i < pNormal.getDataObjects().size(); i++)
+		{
+			PathwayElement eNormal = pNormal.getDataObjects().get(i);
+			PathwayElement eCompact = pCompact.getDataObjects().get(i);
+			assertEquals (eNormal.getBiopaxRefs(), eCompact.getBiopaxRefs());
+			
+			String merged = null;
+			for (PathwayElement.Comment c : eNormal.getComments())
+			{
+				if ("owl".equals(c.getSource())) merged = c.getComment();
+			}
+			int length = 0;
+			int count = 0;
+			for (PathwayElement.Comment c : eCompact.getComments())
+			{
+				// no generated name and RDFId comment, one comment per BioPAX comment
+				assertEquals ("owl", c.getSource());
+				assertNotNull (merged);
+				assertTrue (merged + " lacks " + c.getComment(), merged.contains(c.getComment()));
+				length += c.getComment().length();
+				count++;
+				// equal comments are the same instance
+				String first = shared.get(c.getComment());
+				if (first == null) shared.put(c.getComment(), c.getComment());
+				else assertSame (first, c.getComment());
+			}
+			// the merged comment is the list of the BioPAX comments, nothing is lost or added
+			if (merged != null) assertEquals (merged, 2 + length + 2 * Math.max(0, count - 1), merged.length());
+		}
+		normal.close();
+		compact.close();
+	}
+	
+	/** Small models for the conversion options, each with the situation the option is for */
+	private static final File MODES = new File("testData/modes");
+	
+	private static int count(Pathway pwy, ObjectType type)
+	{
+		int result = 0;
+		for (PathwayElement elt : pwy.getDataObjects()) if (elt.getObjectType() == type) result++;
+		return result;
+	}
+	
+	/** Elements with the given text label */
+	private static List<PathwayElement> withLabel(Pathway pwy, String label)
+	{
+		List<PathwayElement> result = new ArrayList<PathwayElement>();
+		for (PathwayElement elt : pwy.getDataObjects()) if (label.equals(elt.getTextLabel())) result.add(elt);
+		return result;
+	}
+	
+	/** The element converted from the BioPAX element with the given rdf:ID, or null */
+	private static PathwayElement withRef(Pathway pwy, String rdfId)
+	{
+		for (PathwayElement elt : pwy.getDataObjects())
+		{
+			for (String ref : elt.getBiopaxRefs()) if (ref.endsWith("#" + rdfId)) return elt;
+		}
+		return null;
+	}
+	
+	public void testFlyweightComplexes() throws JDOMException, IOException, ConverterException
+	{
+		File f = new File(MODES, "flyweight.owl");
+		Pathway pNormal = convertAll(new ImportHelper(f));
+		// C1 on its own, C2, and a copy of C1 inside C2
+		assertEquals (3, count(pNormal, ObjectType.GROUP));
+		assertEquals (2, withLabel(pNormal, "P1").size());
+		
+		ImportHelper flyweight = new ImportHelper(f);
+		flyweight.setFlyweightComplexes(true);
+		Pathway pFlyweight = convertAll(flyweight);
+		assertEquals (2, count(pFlyweight, ObjectType.GROUP));
+		assertEquals (1, withLabel(pFlyweight, "P1").size());
+		
+		// C1 inside C2 is a single alias node, that points to the group of C1
+		List<PathwayElement> aliases = new ArrayList<PathwayElement>();
+		for (PathwayElement elt : pFlyweight.getDataObjects())
+		{
+			if (elt.getDynamicProperty(ImportHelper.ALIAS_OF) != null) aliases.add(elt);
+		}
+		assertEquals (1, aliases.size());
+		PathwayElement alias = aliases.get(0);
+		assertEquals (ObjectType.DATANODE, alias.getObjectType());
+		assertEquals ("C1", alias.getTextLabel());
+		PathwayElement c1 = pFlyweight.getGroupById(alias.getDynamicProperty(ImportHelper.ALIAS_OF));
+		assertNotNull (c1);
+		assertEquals ("C1", c1.getTextLabel());
+		assertNotNull (alias.getGroupRef());
+		assertEquals ("C2", pFlyweight.getGroupById(alias.getGroupRef()).getTextLabel());
+	}
+	
+	public void testReplicationPolicy() throws JDOMException, IOException, ConverterException
+	{
+		File f = new File(MODES, "replication.owl");
+		Pathway pNormal = convertAll(new ImportHelper(f));
+		assertEquals (6, count(pNormal, ObjectType.DATANODE));
+		assertEquals (1, withLabel(pNormal, "ATP").size());
+		assertEquals (1, withLabel(pNormal, "ADP").size());
+		
+		// ATP and ADP are in the blocklist, one node per reaction
+		ImportHelper currency = new ImportHelper(f);
+		currency.setReplicationPolicy(new ReplicationPolicy(0, ReplicationPolicy.CURRENCY_METABOLITES));
+		Pathway pCurrency = convertAll(currency);
+		assertEquals (8, count(pCurrency, ObjectType.DATANODE));
+		assertEquals (2, withLabel(pCurrency, "ATP").size());
+		assertEquals (2, withLabel(pCurrency, "ADP").size());
+		assertEquals (1, withLabel(pCurrency, "glucose").size());
+		
+		// the same by degree: only ATP and ADP take part in two reactions
+		ImportHelper hubs = new ImportHelper(f);
+		hubs.setReplicationPolicy(new ReplicationPolicy(2, Collections.<String>emptySet()));
+		Pathway pHubs = convertAll(hubs);
+		assertEquals (8, count(pHubs, ObjectType.DATANODE));
+		assertEquals (2, withLabel(pHubs, "ATP").size());
+		
+		// a threshold above the highest degree replicates nothing
+		ImportHelper none = new ImportHelper(f);
+		none.setReplicationPolicy(new ReplicationPolicy(3, Collections.<String>emptySet()));
+		assertEquals (6, count(convertAll(none), ObjectType.DATANODE));
+	}
+	
+	/** Lines that end on the given anchor */
+	private static int countLinesTo(Pathway pwy, MAnchor anchor)
+	{
+		int result = 0;
+		for (PathwayElement elt : pwy.getDataObjects())
+		{
+			if (elt.getObjectType() == ObjectType.LINE && anchor.getGraphId().equals(elt.getMEnd().getGraphRef())) result++;
+		}
+		return result;
+	}
+	
+	public void testBundleControls() throws JDOMException, IOException, ConverterException
+	{
+		File f = new File(MODES, "bundle.owl");
+		// a line with its own anchor for each of the four controllers of R
+		Pathway pNormal = convertAll(new ImportHelper(f));
+		PathwayElement rNormal = withRef(pNormal, "R");
+		assertEquals (4, rNormal.getMAnchors().size());
+		for (MAnchor a : rNormal.getMAnchors()) assertEquals (1, countLinesTo(pNormal, a));
+		
+		ImportHelper bundled = new ImportHelper(f);
+		bundled.setBundleControls(true);
+		Pathway pBundled = convertAll(bundled);
+		assertEquals (5, count(pBundled, ObjectType.LINE));
+		
+		// K1 and K2 share a single anchor on R
+		PathwayElement r = withRef(pBundled, "R");
+		assertEquals (1, r.getMAnchors().size());
+		MAnchor shared = r.getMAnchors().get(0);
+		assertEquals (2, countLinesTo(pBundled, shared));
+		PathwayElement k1 = withRef(pBundled, "K1");
+		PathwayElement k2 = withRef(pBundled, "K2");
+		assertEquals (shared.getGraphId(), k1.getMEnd().getGraphRef());
+		assertEquals (shared.getGraphId(), k2.getMEnd().getGraphRef());
+		
+		// the other two controllers of K1 join its line at one junction
+		assertEquals (1, k1.getMAnchors().size());
+		assertEquals (2, countLinesTo(pBundled, k1.getMAnchors().get(0)));
+		assertEquals (0, k2.getMAnchors().size());
+	}
+	
+	/** The {@link ImportHelper#VARIANT_PREFIX} properties of the element, in order */
+	private static List<String> variants(PathwayElement elt)
+	{
+		List<String> result = new ArrayList<String>();
+		for (int i = 1; elt.getDynamicProperty(ImportHelper.VARIANT_PREFIX + i) != null; i++)
+		{
+			result.add(elt.getDynamicProperty(ImportHelper.VARIANT_PREFIX + i));
+		}
+		return result;
+	}
+	
+	private static Pathway convertCollapsed(File f, EntityCollapse mode) throws JDOMException, IOException, ConverterException
+	{
+		ImportHelper helper = new ImportHelper(f);
+		helper.setEntityCollapse(mode);
+		return convertAll(helper);
+	}
+	
+	public void testEntityCollapse() throws JDOMException, IOException, ConverterException
+	{
+		File f = new File(MODES, "collapse.owl");
+		String cyto = "A cyto [cytosol]";
+		String phos = "A phos [cytosol] (1 features)";
+		String nuc = "A nuc [nucleus]";
+		
+		Pathway none = convertCollapsed(f, EntityCollapse.NONE);
+		assertEquals (4, count(none, ObjectType.DATANODE));
+		for (PathwayElement elt : none.getDataObjects()) assertTrue (variants(elt).isEmpty());
+		
+		// the two proteins in the cytosol are merged, the one in the nucleus is not
+		Pathway byLocation = convertCollapsed(f, EntityCollapse.ENTITY_REFERENCE_AND_LOCATION);
+		assertEquals (3, count(byLocation, ObjectType.DATANODE));
+		PathwayElement cytosol = withRef(byLocation, "a_cyto");
+		assertSame (cytosol, withRef(byLocation, "a_phos"));
+		assertEquals (new HashSet<String>(Arrays.asList(cyto, phos)), new HashSet<String>(variants(cytosol)));
+		assertEquals (2, variants(cytosol).size());
+		PathwayElement nucleus = withRef(byLocation, "a_nuc");
+		assertNotSame (cytosol, nucleus);
+		assertTrue (variants(nucleus).isEmpty());
+		
+		// all three are merged, including the one the node was created for
+		Pathway byReference = convertCollapsed(f, EntityCollapse.ENTITY_REFERENCE);
+		assertEquals (2, count(byReference, ObjectType.DATANODE));
+		PathwayElement a = withRef(byReference, "a_cyto");
+		assertSame (a, withRef(byReference, "a_phos"));
+		assertSame (a, withRef(byReference, "a_nuc"));
+		assertEquals (3, variants(a).size());
+		assertEquals (new HashSet<String>(Arrays.asList(cyto, phos, nuc)), new HashSet<String>(variants(a)));
+		assertTrue (variants(withLabel(byReference, "S").get(0)).isEmpty());
+	}
+	
+	public void testMergeDuplicates() throws JDOMException, IOException, ConverterException
+	{
+		File f = new File(MODES, "merge.owl");
+		// two conversion lines and two control lines
+		Pathway pNormal = convertAll(new ImportHelper(f));
+		assertEquals (4, count(pNormal, ObjectType.LINE));
+		assertNotSame (withRef(pNormal, "R1"), withRef(pNormal, "R2"));
+		
+		ImportHelper merging = new ImportHelper(f);
+		merging.setMergeDuplicates(true);
+		Pathway pMerged = convertAll(merging);
+		assertEquals (2, count(pMerged, ObjectType.LINE));
+		assertEquals (3, count(pMerged, ObjectType.DATANODE));
+		
+		// the remaining lines refer to both duplicates
+		PathwayElement conversion = withRef(pMerged, "R1");
+		assertSame (conversion, withRef(pMerged, "R2"));
+		PathwayElement control = withRef(pMerged, "K1");
+		assertSame (control, withRef(pMerged, "K2"));
+		assertNotSame (conversion, control);
+		assertEquals (1, conversion.getMAnchors().size());
+		assertEquals (conversion.getMAnchors().get(0).getGraphId(), control.getMEnd().getGraphRef());
+	}
+	
+	public void testConvertLazily() throws JDOMException, IOException, ConverterException
+	{
+		final Map<String, Integer> conversions = new HashMap<String, Integer>();
+		ImportHelper helper = new ImportHelper(PATHWAYS, ReaderBackend.STAX) {
+			@Override
+			public Pathway convertPathway(org.biopax.paxtools.model.level3.Pathway bpPathway)
+			{
+				synchronized (conversions)
+				{
+					Integer n = conversions.get(bpPathway.getRDFId());
+					conversions.put(bpPathway.getRDFId(), n == null ? 1 : n + 1);
+				}
+				return super.convertPathway(bpPathway);
+			}
+		};
+		List<Pathway> eager = helper.convert();
+		conversions.clear();
+		
+		// a cache smaller than the list
+		List<Pathway> lazy = helper.convertLazily(1);
+		assertEquals (eager.size(), lazy.size());
+		assertTrue (lazy.size() > 2);
+		assertTrue (conversions.isEmpty());
+		
+		// only the pathways that are accessed are converted, once
+		Pathway first = lazy.get(0);
+		assertEquals (eager.get(0).getDataObjects().size(), first.getDataObjects().size());
+		assertSame (first, lazy.get(0));
+		Pathway second = lazy.get(1);
+		assertEquals (eager.get(1).getDataObjects().size(), second.getDataObjects().size());
+		assertEquals (2, conversions.size());
+		for (int i = 0; i < 2; i++) assertEquals (Integer.valueOf(1), conversions.get(helper.getPathways().get(i).getRDFId()));
+		for (int i = 2; i < lazy.size(); i++) assertNull (conversions.get(helper.getPathways().get(i).getRDFId()));
+		helper.close();
+	}
+	
+	public void testProgress() throws JDOMException, IOException, ConverterException
+	{
+		ProgressKeeper pk = new ProgressKeeper(100);
+		ImportHelper helper = new ImportHelper(EXAMPLE, ReaderBackend.STAX, pk);
+		convertAll(helper);
+		assertTrue (pk.getProgress() > 50);
+		
+		ProgressKeeper cancelled = new ProgressKeeper(100);
+		cancelled.cancel();
+		try
+		{
+			new ImportHelper(EXAMPLE, ReaderBackend.STAX, cancelled);
+			fail ("Expected CancellationException");
+		}
+		catch (CancellationException ex)
+		{
+			// expected
+		}
+	}
+	
+	/** Remembers the highest element count reported while converting */
+	private static class CountingProgress extends ProgressKeeper
+	{
+		int maxDone = 0;
+		int total = 0;
+		
+		CountingProgress()
+		{
+			super(100);
+		}
+		
+		@Override
+		public void setTaskName(String name)
+		{
+			super.setTaskName(name);
+			Matcher m = Pattern.compile("Converting elements \\((\\d+) of (\\d+)\\)").matcher(name);
+			if (m.matches())
+			{
+				maxDone = Math.max(maxDone, Integer.parseInt(m.group(1)));
+				total = Integer.parseInt(m.group(2));
+			}
+		}
+	}
+	
+	/**
+	 * The GPML of a pathway, with graph and group ids renumbered in document order,
+	 * to compare conversions that generate different ids.
+	 */
+	private static String normalizedGpml(Pathway pwy) throws ConverterException
+	{
+		Document doc = GpmlFormat.CURRENT.createJdom(pwy);
+		String text = new XMLOutputter(Format.getPrettyFormat()).outputString(doc);
+		Matcher m = Pattern.compile("(GraphId|GraphRef|GroupId|GroupRef)=\"([^\"]*)\"").matcher(text);
+		Map<String, String> ids = new HashMap<String, String>();
+		StringBuffer result = new StringBuffer();
+		while (m.find())
+		{
+			String id = ids.get(m.group(2));
+			if (id == null)
+			{
+				id = "id" + ids.size();
+				ids.put(m.group(2), id);
+			}
+			m.appendReplacement(result, m.group(1) + "=\"" + id + "\"");
+		}
+		m.appendTail(result);
+		return result.toString();
+	}
+	
+	public void testConvertParallel() throws JDOMException, IOException, ConverterException
+	{
+		ImportHelper sequential = new ImportHelper(PATHWAYS);
+		sequential.setThreads(1);
+		List<Pathway> expected = sequential.convert();
+		sequential.close();
+		assertEquals (4, expected.size());
+		// P2 converts reaction R1 of P1 again, in its own context
+		assertNotNull (withRef(expected.get(0), "R1"));
+		assertNotNull (withRef(expected.get(1), "R1"));
+		
+		// several rounds, to give races a chance to show
+		for (int round = 0; round < 5; round++)
+		{
+			CountingProgress pk = new CountingProgress();
+			ImportHelper parallel = new ImportHelper(PATHWAYS, ReaderBackend.STAX, pk);
+			parallel.setThreads(4);
+			List<Pathway> actual = parallel.convert();
+			parallel.close();
+			assertEquals (expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++)
+			{
+				assertEquals (expected.get(i).getMappInfo().getMapInfoName(), actual.get(i).getMappInfo().getMapInfoName());
+				assertEquals (normalizedGpml(expected.get(i)), normalizedGpml(actual.get(i)));
+			}
+			// every element is in some pathway, and counted once
+			assertTrue (pk.total > 0);
+			assertEquals (pk.total, pk.maxDone);
+		}
+	}
+	
+	public void testProgressCount() throws JDOMException, IOException, ConverterException
+	{
+		// replicated nodes mark the same entity again, that must not count twice
+		CountingProgress pk = new CountingProgress();
+		ImportHelper helper = new ImportHelper(new File(MODES, "replication.owl"), ReaderBackend.STAX, pk);
+		helper.setReplicationPolicy(new ReplicationPolicy(0, ReplicationPolicy.CURRENCY_METABOLITES));
+		helper.convertAll();
+		assertTrue (pk.total > 0);
+		assertEquals (pk.total, pk.maxDone);
+		
+		// a second conversion counts from zero again
+		pk.maxDone = 0;
+		convertAll(helper);
+		assertEquals (pk.total, pk.maxDone);
+	}
+	
+	public void testGroupIndex() throws JDOMException, IOException, ConverterException
+	{
+		// the index should agree with a scan of the whole pathway
+		Pathway pwy = convertAll(new ImportHelper(EXAMPLE));
+		GroupIndex groups = GroupIndex.build(pwy);
+		for (PathwayElement elt : pwy.getDataObjects())
+		{
+			if (elt.getObjectType() != ObjectType.GROUP) continue;
+			assertEquals (pwy.getGroupElements(elt.getGroupId()).size(), 
+					groups.getGroupElements(elt.getGroupId()).size());
+		}
+	}
+	
+	public void testWriteGpml() throws JDOMException, IOException, ConverterException
+	{
+		File f = File.createTempFile("biopax-stream", ".gpml");
+		f.deleteOnExit();
+		Set<String> before = spoolFiles(f.getParentFile(), "biopax-gpml-");
+		ImportHelper helper = new ImportHelper(EXAMPLE);
+		OutputStream out = new FileOutputStream(f);
+		try
+		{
+			helper.writeGpml(out);
+		}
+		finally
+		{
+			out.close();
+			helper.close();
+		}
+		// the spool files are removed right away
+		assertEquals (before, spoolFiles(f.getParentFile(), "biopax-gpml-"));
+		// the streamed GPML should be valid, and all lines should be linked
+		Pathway pwy = new Pathway();
+		pwy.readFromXml(f, true);
+		assertTrue (pwy.getDataObjects().size() > 10);
+		for (PathwayElement elt : pwy.getDataObjects())
+		{
+			if (elt.getObjectType() != ObjectType.LINE) continue;
+			for (PathwayElement.MPoint p : new PathwayElement.MPoint[] { elt.getMStart(), elt.getMEnd() })
+			{
+				if (p.getGraphRef() != null) assertNotNull (pwy.getGraphIdContainer(p.getGraphRef()));
+			}
+		}
+	}
+	
+	public void testWriteGpmlMatchesConvertAll() throws Exception
+	{
+		List<File> files = new ArrayList<File>();
+		files.add(EXAMPLE);
+		for (File f : IMPORT_DIR.listFiles())
+		{
+			if (f.getName().endsWith(".owl")) files.add(f);
+		}
+		for (File f : files)
+		{
+			ImportHelper helper = new ImportHelper(f);
+			File converted = File.createTempFile("biopax-converted", ".gpml");
+			File streamed = File.createTempFile("biopax-streamed", ".gpml");
+			try
+			{
+				helper.convertAll().writeToXml(converted, true);
+				OutputStream out = new FileOutputStream(streamed);
+				try
+				{
+					helper.writeGpml(out);
+				}
+				finally
+				{
+					out.close();
+				}
+				// the same elements, apart from graph ids, positions and anchors
+				Pathway expected = new Pathway();
+				expected.readFromXml(converted, true);
+				Pathway actual = new Pathway();
+				actual.readFromXml(streamed, true);
+				assertEquals (f.getName(), describe(expected), describe(actual));
+				assertEquals (f.getName(), biopaxElements(converted), biopaxElements(streamed));
+			}
+			finally
+			{
+				helper.close();
+				converted.delete();
+				streamed.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Sorted descriptions of the data nodes, groups and lines, without graph ids 
+	 * or coordinates. Lines are described by the elements they link, and anchors by their line.
+	 */
+	private static List<String> describe(Pathway pwy)
+	{
+		List<String> result = new ArrayList<String>();
+		for (PathwayElement elt : pwy.getDataObjects())
+		{
+			switch (elt.getObjectType())
+			{
+			case DATANODE:
+			case GROUP:
+				result.add(describeNode(pwy, elt));
+				break;
+			case LINE:
+				result.add(describeLine(elt) + " from " + describeTarget(pwy, elt.getMStart()) + 
+						" to " + describeTarget(pwy, elt.getMEnd()));
+				break;
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+	
+	private static String describeNode(Pathway pwy, PathwayElement elt)
+	{
+		String result = elt.getObjectType() + " " + elt.getTextLabel() + " " + elt.getDataNodeType() + 
+			" " + elt.getGroupStyle() + " " + elt.getXref() + " " + describeRefs(elt);
+		if (elt.getGroupRef() != null) result += " in " + describeNode(pwy, pwy.getGroupById(elt.getGroupRef()));
+		return result;
+	}
+	
+	private static String describeLine(PathwayElement line)
+	{
+		return "LINE " + line.getStartLineType() + " " + line.getEndLineType() + " " + describeRefs(line);
+	}
+	
+	private static String describeRefs(PathwayElement elt)
+	{
+		List<String> refs = new ArrayList<String>(elt.getBiopaxRefs());
+		Collections.sort(refs);
+		StringBuilder comments = new StringBuilder();
+		for (PathwayElement.Comment c : elt.getComments())
+		{
+			comments.append('[').append(c.getSource()).append(':').append(c.getComment()).append(']');
+		}
+		return refs + " " + comments;
+	}
+	
+	private static String describeTarget(Pathway pwy, PathwayElement.MPoint p)
+	{
+		if (p.getGraphRef() == null) return "nothing";
+		Object target = pwy.getGraphIdContainer(p.getGraphRef());
+		if (target instanceof MAnchor) return "anchor on " + describeLine(((MAnchor)target).getParent());
+		if (target instanceof PathwayElement) return describeNode(pwy, (PathwayElement)target);
+		return "unknown " + target;
+	}
+	
+	/** The BioPAX elements of a GPML file, serialized and sorted */
+	private static List<String> biopaxElements(File gpml) throws JDOMException, IOException
+	{
+		org.jdom.Element root = new SAXBuilder().build(gpml).getRootElement();
+		org.jdom.Element biopax = root.getChild("Biopax", root.getNamespace());
+		List<String> result = new ArrayList<String>();
+		if (biopax == null) return result;
+		XMLOutputter outputter = new XMLOutputter(Format.getCompactFormat());
+		for (Object child : biopax.getChildren())
+		{
+			result.add(outputter.outputString((org.jdom.Element)((org.jdom.Element)child).clone()));
+		}
+		Collections.sort(result);
+		return result;
+	}
+	
+	public void testImportPipelineOrder() throws Exception
+	{
+		// each file twice, so that there are more files than the queue can hold
+		final List<File> files = new ArrayList<File>();
+		List<String> expected = new ArrayList<String>();
+		for (int copy = 0; copy < 2; copy++)
+		{
+			for (File f : IMPORT_DIR.listFiles())
+			{
+				if (!f.getName().endsWith("owl")) continue;
+				files.add(f);
+				ImportHelper helper = new ImportHelper(f);
+				List<org.biopax.paxtools.model.level3.Pathway> bps = helper.getPathways();
+				if (bps.isEmpty()) expected.add(null);
+				for (org.biopax.paxtools.model.level3.Pathway bp : bps) expected.add(bp.getRDFId());
+				helper.close();
+			}
+		}
+		assertTrue (files.size() > 4);
+
+		final List<String> received = new ArrayList<String>();
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		// one file being converted, one on the queue and one waiting to be put on it
+		final CountDownLatch parsedAhead = new CountDownLatch(3);
+		final AtomicBoolean overrun = new AtomicBoolean();
+		final ImportPipeline pipeline = new ImportPipeline(new PathwayHandler() {
+			public void pathwayConverted(Pathway gpmlPathway, org.biopax.paxtools.model.level3.Pathway bpPathway)
+			{
+				received.add(bpPathway == null ? null : bpPathway.getRDFId());
+				blocked.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}) {
+			protected ImportHelper createHelper(File file) throws JDOMException, IOException, ConverterException
+			{
+				// while the first file is blocked in the handler, a fourth can't be parsed
+				if (parsedAhead.getCount() == 0 && release.getCount() > 0) overrun.set(true);
+				ImportHelper helper = super.createHelper(file);
+				parsedAhead.countDown();
+				return helper;
+			}
+		};
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread runner = new Thread() {
+			public void run()
+			{
+				try
+				{
+					pipeline.run(files);
+				}
+				catch (Throwable t)
+				{
+					failure.set(t);
+				}
+			}
+		};
+		runner.start();
+		assertTrue (blocked.await(5, TimeUnit.MINUTES));
+		// parsing runs ahead while the first pathway is in the handler
+		assertTrue (parsedAhead.await(5, TimeUnit.MINUTES));
+		assertEquals (1, pipeline.getStageCount(ImportPipeline.Stage.CONVERT));
+		release.countDown();
+		runner.join();
+		assertNull (failure.get());
+		assertFalse (overrun.get());
+
+		assertEquals (expected, received);
+		assertEquals (files.size(), pipeline.getStageCount(ImportPipeline.Stage.PARSE));
+		assertEquals (expected.size(), pipeline.getStageCount(ImportPipeline.Stage.CONVERT));
+	}
+	
+	public void testImportPipelineFailure() throws Exception
+	{
+		// compressed files are spooled to a temporary file while they are read
+		File dir = File.createTempFile("biopax-pipeline", "");
+		dir.delete();
+		dir.mkdirs();
+		try
+		{
+			List<File> files = new ArrayList<File>();
+			for (File f : IMPORT_DIR.listFiles())
+			{
+				if (!f.getName().endsWith("owl")) continue;
+				File gz = new File(dir, f.getName() + ".gz");
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(gz));
+				try
+				{
+					out.write(readBytes(f));
+				}
+				finally
+				{
+					out.close();
+				}
+				files.add(gz);
+			}
+			File tmp = dir.getParentFile();
+			Set<String> before = spoolFiles(tmp, "biopax-index");
+			ImportPipeline pipeline = new ImportPipeline(new PathwayHandler() {
+				public void pathwayConverted(Pathway gpmlPathway, org.biopax.paxtools.model.level3.Pathway bpPathway) 
+					throws ConverterException
+				{
+					throw new ConverterException("stop");
+				}
+			});
+			try
+			{
+				pipeline.run(files);
+				fail ("Expected the exception of the handler");
+			}
+			catch (ConverterException ex)
+			{
+				assertEquals ("stop", ex.getMessage());
+			}
+			// a file that was parsed ahead, but never converted, is closed as well
+			assertEquals (before, spoolFiles(tmp, "biopax-index"));
+		}
+		finally
+		{
+			deleteRecursively(dir);
+		}
+	}
+	
+	private static Set<String> spoolFiles(File dir, String prefix)
+	{
+		Set<String> result = new HashSet<String>();
+		for (String name : dir.list())
+		{
+			if (name.startsWith(prefix)) result.add(name);
+		}
+		return result;
+	}
+	
+	public void testImportPipeline() throws ConverterException, InterruptedException
+	{
+		List<File> files = new ArrayList<File>();
+		for (File f : IMPORT_DIR.listFiles())
+		{
+			if (f.getName().endsWith("owl")) files.add(f);
+		}
+		final List<Pathway> received = new ArrayList<Pathway>();
+		ImportPipeline pipeline = new ImportPipeline(new PathwayHandler() {
+			public void pathwayConverted(Pathway gpmlPathway, org.biopax.paxtools.model.level3.Pathway bpPathway)
+			{
+				received.add(gpmlPathway);
+			}
+		});
+		pipeline.run(files);
+		assertTrue (received.size() >= files.size());
+		assertEquals (files.size(), pipeline.getStageCount(ImportPipeline.Stage.PARSE));
+		assertEquals (received.size(), pipeline.getStageCount(ImportPipeline.Stage.CONVERT));
+	}
+	
+	public void testStreams() throws JDOMException, IOException, ConverterException
+	{
+		byte[] bytes = readBytes(EXAMPLE);
+		int expected = convertAll(new ImportHelper(EXAMPLE)).getDataObjects().size();
+		Pathway fromStream = convertAll(new ImportHelper(new ByteArrayInputStream(bytes), EXAMPLE.getName(), ReaderBackend.STAX, null));
+		assertEquals (expected, fromStream.getDataObjects().size());
+		Pathway fromBuffer = convertAll(new ImportHelper(ByteBuffer.wrap(bytes), EXAMPLE.getName(), ReaderBackend.STAX, null));
+		assertEquals (expected, fromBuffer.getDataObjects().size());
+		
+		Pathway pwy = new Pathway();
+		pwy.readFromXml(new File (EXPORT_DIR, "reaction.gpml"), true);
+		ByteArrayOutputStream owl = new ByteArrayOutputStream();
+		ByteArrayOutputStream bpss = new ByteArrayOutputStream();
+		new ExportHelper(pwy).export(owl, bpss);
+		assertTrue (owl.size() > 0);
+		assertTrue (bpss.size() > 0);
+	}
+	
+	public void testExtensions()
+	{
+		List<String> imports = Arrays.asList(new BiopaxFormat().getExtensions());
+		assertTrue (imports.contains("owl"));
+		assertTrue (imports.contains("owl.gz"));
+		assertTrue (imports.contains("owl.zip"));
+		// not every compressed file is BioPAX
+		assertFalse (imports.contains("gz"));
+		assertFalse (imports.contains("zip"));
+		// zip archives can't be written
+		List<String> exports = Arrays.asList(BiopaxFormat.createExporter().getExtensions());
+		assertTrue (exports.contains("owl"));
+		for (String ext : exports) assertFalse (ext, ext.endsWith("zip"));
+	}
+	
+	public void testCompression() throws JDOMException, IOException, ConverterException, InterruptedException
+	{
+		byte[] bytes = readBytes(EXAMPLE);
+		int objects = convertAll(new ImportHelper(EXAMPLE)).getDataObjects().size();
+		int pathways = PathwayScanner.scan(EXAMPLE).size();
+		
+		File dir = File.createTempFile("biopax-zip", "");
+		dir.delete();
+		dir.mkdirs();
+		try
+		{
+			File gz = new File(dir, "example.owl.gz");
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(gz));
+			out.write(bytes);
+			out.close();
+			assertEquals (objects, convertAll(new ImportHelper(gz)).getDataObjects().size());
+			assertEquals (pathways, PathwayScanner.scan(gz).size());
+			
+			File single = new File(dir, "single.zip");
+			writeZip(single, bytes, "example.owl");
+			assertEquals (objects, convertAll(new ImportHelper(single)).getDataObjects().size());
+			assertEquals (pathways, PathwayScanner.scan(single).size());
+			
+			// a zip archive with two entries is rejected by the importer...
+			File archives = new File(dir, "archives");
+			archives.mkdirs();
+			File multiple = new File(archives, "archive.zip");
+			writeZip(multiple, bytes, "first.owl", "second.owl");
+			try
+			{
+				new ImportHelper(multiple);
+				fail ("Expected ConverterException");
+			}
+			catch (ConverterException expected)
+			{
+			}
+			
+			// ...and converted as a batch
+			File outDir = new File(dir, "out");
+			assertTrue (new BatchConverter(BatchConverter.Direction.IMPORT, outDir).run(archives));
+			assertTrue (new File(outDir, "archive/first.gpml").exists());
+			assertTrue (new File(outDir, "archive/second.gpml").exists());
+			
+			Pathway pwy = new Pathway();
+			pwy.readFromXml(new File (EXPORT_DIR, "reaction.gpml"), true);
+			File owlGz = new File(dir, "reaction.owl.gz");
+			new ExportHelper(pwy).export(owlGz, true);
+			assertTrue (Compression.isCompressed(owlGz));
+			assertTrue (Compression.isCompressed(new File(dir, "reaction.bpss.gz")));
+		}
+		finally
+		{
+			deleteRecursively(dir);
+		}
+	}
+	
+	private static void writeZip(File file, byte[] bytes, String... names) throws IOException
+	{
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+		for (String name : names)
+		{
+			zip.putNextEntry(new ZipEntry(name));
+			zip.write(bytes);
+			zip.closeEntry();
+		}
+		zip.close();
+	}
+	
+	private static void deleteRecursively(File f)
+	{
+		File[] children = f.listFiles();
+		if (children != null) for (File child : children) deleteRecursively(child);
+		f.delete();
+	}
+	
 	private static final File EXPORT_DIR = new File("testData/export");
 	private static final File IMPORT_DIR = new File("testData/import");
 	
@@ -59,6 +1133,133 @@ public class Test extends TestCase
 		new File (EXPORT_DIR, "publication.gpml"),
 	};
 	
+	public void testDataSourceRegistry()
+	{
+		assertEquals ("keggcompound", DataSourceRegistry.normalize(" KEGG\tCompound "));
+		assertEquals (DataSourceRegistry.hash("keggcompound"), DataSourceRegistry.hash("KEGG Compound"));
+		assertTrue (DataSourceRegistry.normalizedEquals("keggcompound", "KEGG Compound"));
+		assertTrue (DataSourceRegistry.normalizedEquals("keggcompound", "keggcompound"));
+		assertFalse (DataSourceRegistry.normalizedEquals("keggcompound", "KEGG Compounds"));
+		assertFalse (DataSourceRegistry.normalizedEquals("keggcompound", "KEGG"));
+		
+		DataSourceRegistry registry = DataSourceRegistry.getInstance();
+		assertNull (registry.getDataSource(null));
+		assertNull (registry.getDataSource(" "));
+		
+		DataSource uniprot = DataSource.getBySystemCode("S");
+		assertSame (uniprot, registry.getDataSource("UniProt"));
+		assertSame (uniprot, registry.getDataSource("uniprot knowledgebase"));
+		assertSame (uniprot, registry.getDataSource("UniProtKB"));
+		assertSame (DataSource.getBySystemCode("Ck"), registry.getDataSource("KEGG Compound"));
+		assertSame (DataSource.getBySystemCode("L"), registry.getDataSource("NCBI Gene"));
+		assertEquals ("Uniprot", registry.getMiriamName(uniprot));
+		
+		// unknown names give the same answer every time, whether or not they are cached
+		DataSource unknown = registry.getDataSource("No such database");
+		assertSame (unknown, registry.getDataSource("no such  DATABASE"));
+	}
+	
+	/** Maps L:1 to En:ENSG1, and counts the batches it is asked for */
+	private static class CountingMapper implements IDMapper
+	{
+		final List<Integer> batches = new ArrayList<Integer>();
+		boolean closed = false;
+		
+		public Map<Xref, Set<Xref>> mapID(Collection<Xref> srcXrefs, DataSource... tgtDataSources)
+		{
+			batches.add(srcXrefs.size());
+			Map<Xref, Set<Xref>> result = new HashMap<Xref, Set<Xref>>();
+			for (Xref src : srcXrefs) result.put(src, mapID(src, tgtDataSources));
+			return result;
+		}
+		
+		public Set<Xref> mapID(Xref srcXref, DataSource... tgtDataSources)
+		{
+			Set<Xref> result = new HashSet<Xref>();
+			if (srcXref.getId().equals("1")) result.add(new Xref("ENSG1", DataSource.getBySystemCode("En")));
+			return result;
+		}
+		
+		public boolean xrefExists(Xref xref) { return true; }
+		public Set<Xref> freeSearch(String text, int limit) { return Collections.emptySet(); }
+		public IDMapperCapabilities getCapabilities() { return null; }
+		public void close() { closed = true; }
+		public boolean isConnected() { return !closed; }
+	}
+	
+	private static Pathway xrefPathway(String... entrezIds)
+	{
+		Pathway pwy = new Pathway();
+		for (String id : entrezIds)
+		{
+			PathwayElement node = PathwayElement.createPathwayElement(ObjectType.DATANODE);
+			node.setElementID(id);
+			node.setDataSource(DataSource.getBySystemCode("L"));
+			pwy.add(node);
+		}
+		PathwayElement preferred = PathwayElement.createPathwayElement(ObjectType.DATANODE);
+		preferred.setElementID("ENSG2");
+		preferred.setDataSource(DataSource.getBySystemCode("En"));
+		pwy.add(preferred);
+		return pwy;
+	}
+	
+	private static Set<String> xrefs(Pathway pwy)
+	{
+		Set<String> result = new HashSet<String>();
+		for (PathwayElement elt : pwy.getDataObjects())
+		{
+			if (elt.getObjectType() == ObjectType.DATANODE) result.add(elt.getDataSource().getSystemCode() + ":" + elt.getElementID());
+		}
+		return result;
+	}
+	
+	public void testXrefNormalizer() throws IOException
+	{
+		DataSource en = DataSource.getBySystemCode("En");
+		File dir = File.createTempFile("xref-cache", "");
+		dir.delete();
+		dir.mkdirs();
+		File cacheFile = XrefNormalizer.getCacheFile(dir, "test-db", en);
+		assertFalse (cacheFile.equals(XrefNormalizer.getCacheFile(dir, "other-db", en)));
+		assertFalse (cacheFile.equals(XrefNormalizer.getCacheFile(dir, "test-db", en, DataSource.getBySystemCode("Ce"))));
+		// "Aa" and "BB" have the same hashCode
+		assertFalse (XrefNormalizer.getCacheFile(dir, "Aa", en).equals(XrefNormalizer.getCacheFile(dir, "BB", en)));
+		assertTrue (cacheFile.getName().matches("biopax-xref-cache-[0-9a-f]{40}\\.txt"));
+		try
+		{
+			// one batch for all xrefs of a pathway, without duplicates or preferred xrefs
+			CountingMapper mapper = new CountingMapper();
+			XrefNormalizer normalizer = new XrefNormalizer(mapper, cacheFile, en);
+			Pathway pwy = xrefPathway("1", "2", "1");
+			normalizer.normalize(pwy);
+			assertEquals (Arrays.asList(2), mapper.batches);
+			assertEquals (new HashSet<String>(Arrays.asList("En:ENSG1", "L:2", "En:ENSG2")), xrefs(pwy));
+			
+			// mapped and unmapped xrefs are cached, only new xrefs are looked up
+			Pathway second = xrefPathway("1", "2", "3");
+			normalizer.normalize(second);
+			assertEquals (Arrays.asList(2, 1), mapper.batches);
+			assertEquals (new HashSet<String>(Arrays.asList("En:ENSG1", "L:2", "L:3", "En:ENSG2")), xrefs(second));
+			normalizer.close();
+			assertTrue (mapper.closed);
+			
+			// a new normalizer reads the cache file and doesn't need the database
+			CountingMapper offline = new CountingMapper();
+			offline.closed = true;
+			XrefNormalizer reused = new XrefNormalizer(offline, cacheFile, en);
+			Pathway third = xrefPathway("1", "2", "3");
+			reused.normalize(third);
+			assertTrue (offline.batches.isEmpty());
+			assertEquals (xrefs(second), xrefs(third));
+		}
+		finally
+		{
+			cacheFile.delete();
+			dir.delete();
+		}
+	}
+	
 	public void testExport() throws ConverterException, IOException
 	{
 		// simply test if all files can be exported without exceptions
@@ -73,6 +1274,44 @@ public class Test extends TestCase
 		}
 	}
 	
+	public void testBatchConverter() throws IOException, InterruptedException
+	{
+		File out = File.createTempFile("biopax-batch", "");
+		out.delete();
+		try
+		{
+			BatchConverter converter = new BatchConverter(BatchConverter.Direction.IMPORT, out);
+			converter.setThreads(2);
+			converter.setTimeout(5, TimeUnit.MINUTES);
+			assertTrue (converter.run(IMPORT_DIR));
+			assertTrue (new File(out, "biopax3-short-metabolic-pathway.gpml").exists());
+		}
+		finally
+		{
+			deleteRecursively(out);
+		}
+	}
+	
+	public void testExportInterrupted() throws ConverterException
+	{
+		Pathway pwy = new Pathway();
+		pwy.readFromXml(new File (EXPORT_DIR, "reaction.gpml"), true);
+		// the batch converter interrupts exports that time out
+		Thread.currentThread().interrupt();
+		try
+		{
+			new ExportHelper(pwy);
+			fail ("Expected CancellationException");
+		}
+		catch (CancellationException expected)
+		{
+		}
+		finally
+		{
+			Thread.interrupted();
+		}
+	}
+	
 	public void testImport() throws JDOMException, IOException, ConverterException
 	{
 		// simply test if all files can be imported without exceptions
@@ -80,8 +1319,7 @@ public class Test extends TestCase
 		{
 			if (!f.getName().endsWith("owl")) continue;
 			assertTrue (f.exists());
-			ImportHelper helper = new ImportHelper(f);
-			Pathway pwy = helper.convertAll();
+			Pathway pwy = convertAll(new ImportHelper(f));
 			System.out.println(pwy.getDataNodeXrefs().size());
 		}
 	}
@@ -0,0 +1,152 @@
+package org.pathvisio.biopax3.bots;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.biopax.paxtools.model.Model;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+import org.pathvisio.biopax3.importer.ImportHelper;
+import org.pathvisio.biopax3.importer.ReaderBackend;
+import org.pathvisio.core.model.GpmlFormat;
+
+/**
+ * Compares the time and peak heap of loading a BioPAX file the old way,
+ * a JDOM document for the RDF:ID map plus a second parse by paxtools, with
+ * the single pass of {@link ImportHelper}.
+ * <p>
+ * The peak heap is the sum of the peak usage of the heap memory pools, which
+ * are reset after a garbage collection before each run. The pools may peak at
+ * different moments, so this is an upper bound, but the same one for each method.
+ * <p>
+ * Usage: LoadBenchmark [rounds] [file...], defaults to 5 rounds over
+ * testData/exemple_l3.owl and testData/biocyc_level3.owl.
+ */
+public class LoadBenchmark
+{
+	private static final int DEFAULT_ROUNDS = 5;
+
+	interface Loader
+	{
+		void load(File f) throws Exception;
+	}
+
+	/** The import before the single pass: a full JDOM tree, kept while paxtools reads the file again */
+	static final Loader TWO_PASS = new Loader() {
+		public void load(File f) throws Exception
+		{
+			Document doc = new SAXBuilder().build(f);
+			Map<String, Element> rdfid2element = new HashMap<String, Element>();
+			for (Object o : doc.getRootElement().getChildren())
+			{
+				Element e = (Element)o;
+				String id = e.getAttributeValue("ID", GpmlFormat.RDF);
+				if (id == null) id = e.getAttributeValue("about", GpmlFormat.RDF);
+				if (id != null) rdfid2element.put(id, e);
+			}
+			InputStream in = new BufferedInputStream(new FileInputStream(f));
+			try
+			{
+				Model model = ReaderBackend.JENA.read(in);
+				if (model.getObjects().isEmpty() || rdfid2element.isEmpty()) throw new IllegalStateException("Empty model");
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+	};
+
+	static Loader singlePass(final ReaderBackend backend)
+	{
+		return new Loader() {
+			public void load(File f) throws Exception
+			{
+				ImportHelper helper = new ImportHelper(f, backend);
+				helper.close();
+			}
+		};
+	}
+
+	/** Best time in ms and lowest peak heap in bytes over the rounds */
+	static long[] measure(Loader loader, File f, int rounds) throws Exception
+	{
+		long bestTime = Long.MAX_VALUE;
+		long bestPeak = Long.MAX_VALUE;
+		for (int i = 0; i < rounds; i++)
+		{
+			resetPeakHeap();
+			long start = System.nanoTime();
+			loader.load(f);
+			bestTime = Math.min(bestTime, (System.nanoTime() - start) / 1000000);
+			bestPeak = Math.min(bestPeak, peakHeap());
+		}
+		return new long[] { bestTime, bestPeak };
+	}
+
+	private static void resetPeakHeap()
+	{
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+		}
+	}
+
+	private static long peakHeap()
+	{
+		long result = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP) result += pool.getPeakUsage().getUsed();
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+		File[] files;
+		if (args.length > 1)
+		{
+			files = new File[args.length - 1];
+			for (int i = 1; i < args.length; i++) files[i - 1] = new File(args[i]);
+		}
+		else
+		{
+			files = new File[] { new File("testData/exemple_l3.owl"), new File("testData/biocyc_level3.owl") };
+		}
+
+		for (File f : files)
+		{
+			// warm up the class loading and JIT, these runs are not reported
+			TWO_PASS.load(f);
+			singlePass(ReaderBackend.STAX).load(f);
+
+			long[] old = measure(TWO_PASS, f, rounds);
+			System.out.println(f.getName() + " (" + (f.length() >> 10) + " kB), best of " + rounds + " rounds");
+			System.out.println("  two pass (JDOM + JENA): " + old[0] + " ms, peak heap " + (old[1] >> 20) + " MB");
+			for (ReaderBackend backend : ReaderBackend.values())
+			{
+				long[] now = measure(singlePass(backend), f, rounds);
+				System.out.println("  single pass (" + backend + "): " + now[0] + " ms (" + percent(now[0], old[0]) +
+						"), peak heap " + (now[1] >> 20) + " MB (" + percent(now[1], old[1]) + ")");
+			}
+		}
+	}
+
+	private static String percent(long now, long old)
+	{
+		if (old == 0) return "n/a";
+		long change = Math.round(100.0 * (now - old) / old);
+		return (change > 0 ? "+" : "") + change + "%";
+	}
+}
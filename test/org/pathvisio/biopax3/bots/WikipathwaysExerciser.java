@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 
 import javax.xml.rpc.ServiceException;
 
@@ -65,12 +66,7 @@ public class WikipathwaysExerciser
 		WSPathwayInfo info = client.getPathwayInfo(id);
 		byte[] bytes = client.getPathwayAs("owl", id, Integer.parseInt (info.getRevision()));
 
-		File tmpFile = File.createTempFile(id, ".owl");
-		FileWriter writer = new FileWriter(tmpFile);
-		writer.write(new String(bytes));
-		writer.close();
-		
-		Pathway pwy = bpFormat.doImport(tmpFile);
+		Pathway pwy = bpFormat.doImport(ByteBuffer.wrap(bytes), id + ".owl", null);
 		System.out.println(pwy.getDataNodeXrefs().size());
 	}
 	
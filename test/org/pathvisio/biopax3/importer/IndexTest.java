@@ -0,0 +1,440 @@
+package org.pathvisio.biopax3.importer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.biopax.paxtools.model.BioPAXLevel;
+import org.biopax.paxtools.model.Model;
+import org.biopax.paxtools.model.level3.BiochemicalReaction;
+import org.biopax.paxtools.model.level3.Catalysis;
+import org.biopax.paxtools.model.level3.Gene;
+import org.biopax.paxtools.model.level3.Pathway;
+import org.biopax.paxtools.model.level3.PathwayStep;
+import org.biopax.paxtools.model.level3.Protein;
+import org.biopax.paxtools.model.level3.ProteinReference;
+import org.biopax.paxtools.model.level3.SmallMolecule;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.Namespace;
+import org.pathvisio.core.model.ConverterException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the package private tables and indexes of the importer.
+ */
+public class IndexTest extends TestCase
+{
+	private static final String BASE = "http://example.org/test";
+	private static final File PATHWAYS = new File("testData/pathways.owl");
+	private static final Namespace BP = Namespace.getNamespace("bp", PathwayScanner.BIOPAX_L3_NS);
+
+	private static final String DOCUMENT =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<!DOCTYPE rdf:RDF [<!ENTITY xsd \"http://www.w3.org/2001/XMLSchema#\">]>\n" +
+		"<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" " +
+		"xmlns:bp=\"" + PathwayScanner.BIOPAX_L3_NS + "\" xml:base=\"" + BASE + "\">\n" +
+		"<!-- <bp:Protein rdf:ID=\"commented\"/> -->\n" +
+		"<?pi <bp:Protein rdf:ID=\"instruction\"/> ?>\n" +
+		"<bp:Protein rdf:ID=\"p1\">\n" +
+		" <bp:comment rdf:datatype=\"&xsd;string\"><![CDATA[<bp:Protein rdf:ID=\"cdata\"/> ]]></bp:comment>\n" +
+		" <bp:displayName rdf:datatype=\"&xsd;string\">Protéine 蛋白质 &amp; &lt;more&gt;</bp:displayName>\n" +
+		"</bp:Protein>\n" +
+		"<bp:SmallMolecule rdf:ID='a&amp;b' />\n" +
+		"<bp:Complex rdf:about=\"http://example.org/other#c1\">" +
+		"<bp:component><bp:Protein rdf:ID=\"nested\"><bp:name>é</bp:name></bp:Protein></bp:component>" +
+		"</bp:Complex>\n" +
+		"</rdf:RDF>\n";
+
+	private static byte[] documentBytes() throws IOException
+	{
+		return DOCUMENT.getBytes("UTF-8");
+	}
+
+	/** Returns at most chunk bytes per read, to split tokens over buffer boundaries */
+	private static class ChunkedStream extends FilterInputStream
+	{
+		private final int chunk;
+
+		ChunkedStream(InputStream in, int chunk)
+		{
+			super(in);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return super.read(b, off, Math.min(len, chunk));
+		}
+	}
+
+	private static void consume(ElementIndex index, InputStream source, int chunk) throws IOException
+	{
+		InputStream in = index.tee(new ChunkedStream(source, chunk));
+		try
+		{
+			byte[] buf = new byte[4096];
+			while (in.read(buf, 0, buf.length) >= 0) { /* read all */ }
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void checkDocument(ElementIndex index) throws IOException, JDOMException
+	{
+		assertEquals (4, index.size());
+		assertNull (index.getElement(BASE + "#commented"));
+		assertNull (index.getElement(BASE + "#instruction"));
+		assertNull (index.getElement(BASE + "#cdata"));
+		assertNull (index.getElement(BASE + "#missing"));
+
+		Element p1 = index.getElement(BASE + "#p1");
+		assertNotNull (p1);
+		assertEquals ("Protein", p1.getName());
+		assertEquals ("Protéine 蛋白质 & <more>", p1.getChildText("displayName", BP));
+		assertEquals ("<bp:Protein rdf:ID=\"cdata\"/> ", p1.getChildText("comment", BP));
+		// every call returns a new element
+		assertNotSame (p1, index.getElement(BASE + "#p1"));
+
+		Element sm = index.getElement(BASE + "#a&b");
+		assertNotNull (sm);
+		assertEquals ("SmallMolecule", sm.getName());
+
+		Element c1 = index.getElement("http://example.org/other#c1");
+		assertNotNull (c1);
+		assertEquals ("Complex", c1.getName());
+		assertNotNull (c1.getChild("component", BP));
+
+		Element nested = index.getElement(BASE + "#nested");
+		assertNotNull (nested);
+		assertEquals ("é", nested.getChildText("name", BP));
+	}
+
+	public void testElementIndexBuffer() throws IOException, JDOMException
+	{
+		byte[] bytes = documentBytes();
+		for (int chunk : new int[] { 1, 2, 3, 7, 64, 8192 })
+		{
+			ElementIndex index = new ElementIndex(ByteBuffer.wrap(bytes), new UriDictionary());
+			consume(index, new ByteArrayInputStream(bytes), chunk);
+			checkDocument(index);
+			index.close();
+		}
+	}
+
+	public void testElementIndexFile() throws IOException, JDOMException
+	{
+		File f = File.createTempFile("index-test", ".owl");
+		try
+		{
+			OutputStream out = new FileOutputStream(f);
+			out.write(documentBytes());
+			out.close();
+
+			ElementIndex index = new ElementIndex(f, new UriDictionary());
+			consume(index, new FileInputStream(f), 5);
+			checkDocument(index);
+			index.close();
+			// the source file is opened again after close
+			assertNotNull (index.getElement(BASE + "#p1"));
+			index.close();
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	public void testElementIndexSpool() throws IOException, JDOMException
+	{
+		ElementIndex index = new ElementIndex(new UriDictionary());
+		consume(index, new ByteArrayInputStream(documentBytes()), 3);
+		checkDocument(index);
+		index.close();
+		// the temporary copy is deleted
+		try
+		{
+			index.getElement(BASE + "#p1");
+			fail ("Expected IOException after close");
+		}
+		catch (IOException expected)
+		{
+		}
+	}
+
+	public void testTeeFinish() throws IOException, JDOMException
+	{
+		byte[] bytes = documentBytes();
+		// a reader that stops early: finish indexes the rest of the document
+		ElementIndex index = new ElementIndex(ByteBuffer.wrap(bytes), new UriDictionary());
+		ByteArrayInputStream source = new ByteArrayInputStream(bytes);
+		ElementIndex.TeeStream in = index.tee(source);
+		in.read(new byte[10], 0, 10);
+		in.finish();
+		assertEquals (0, source.available());
+		checkDocument(index);
+		index.close();
+
+		// close, e.g. after an error, doesn't read the remaining input
+		index = new ElementIndex(ByteBuffer.wrap(bytes), new UriDictionary());
+		source = new ByteArrayInputStream(bytes);
+		in = index.tee(source);
+		in.read(new byte[10], 0, 10);
+		in.close();
+		assertEquals (bytes.length - 10, source.available());
+		assertEquals (0, index.size());
+		index.close();
+	}
+
+	/** Counts the conversions of each pathway */
+	private static class CountingHelper extends ImportHelper
+	{
+		final Map<String, Integer> conversions = new HashMap<String, Integer>();
+
+		CountingHelper(File f) throws JDOMException, IOException, ConverterException
+		{
+			super(f, ReaderBackend.STAX);
+		}
+
+		@Override
+		public org.pathvisio.core.model.Pathway convertPathway(Pathway bpPathway)
+		{
+			synchronized (conversions)
+			{
+				Integer n = conversions.get(bpPathway.getRDFId());
+				conversions.put(bpPathway.getRDFId(), n == null ? 1 : n + 1);
+			}
+			return super.convertPathway(bpPathway);
+		}
+
+		int count(int index)
+		{
+			synchronized (conversions)
+			{
+				Integer n = conversions.get(getPathways().get(index).getRDFId());
+				return n == null ? 0 : n;
+			}
+		}
+	}
+
+	public void testLazyPathwayListRelease() throws Exception
+	{
+		CountingHelper helper = new CountingHelper(PATHWAYS);
+		LazyPathwayList lazy = new LazyPathwayList(helper, helper.getPathways(), 1);
+		org.pathvisio.core.model.Pathway first = lazy.get(0);
+		org.pathvisio.core.model.Pathway second = lazy.get(1);
+		// the first is no longer in the cache of one, and is released when memory runs low
+		lazy.releaseUnused();
+		assertSame (second, lazy.get(1));
+		org.pathvisio.core.model.Pathway again = lazy.get(0);
+		assertNotSame (first, again);
+		assertEquals (first.getDataObjects().size(), again.getDataObjects().size());
+		assertEquals (2, helper.count(0));
+		assertEquals (1, helper.count(1));
+		assertEquals (0, helper.count(2));
+		helper.close();
+	}
+
+	public void testLazyPathwayListConcurrent() throws Exception
+	{
+		final CountDownLatch firstStarted = new CountDownLatch(1);
+		final CountDownLatch secondStarted = new CountDownLatch(1);
+		final AtomicBoolean overlapped = new AtomicBoolean();
+		final CountingHelper helper = new CountingHelper(PATHWAYS) {
+			@Override
+			public org.pathvisio.core.model.Pathway convertPathway(Pathway bpPathway)
+			{
+				if (bpPathway == getPathways().get(0))
+				{
+					firstStarted.countDown();
+					// only returns early if another conversion can start while this one runs
+					try
+					{
+						overlapped.set(secondStarted.await(1, TimeUnit.MINUTES));
+					}
+					catch (InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+				else
+				{
+					secondStarted.countDown();
+				}
+				return super.convertPathway(bpPathway);
+			}
+		};
+		final LazyPathwayList lazy = new LazyPathwayList(helper, helper.getPathways(), 0);
+		final List<org.pathvisio.core.model.Pathway> results = 
+			Collections.synchronizedList(new ArrayList<org.pathvisio.core.model.Pathway>());
+		List<Thread> threads = new ArrayList<Thread>();
+		// two threads for the first pathway, and one for another
+		for (final int index : new int[] { 0, 0, 1 })
+		{
+			Thread t = new Thread() {
+				public void run()
+				{
+					org.pathvisio.core.model.Pathway p = lazy.get(index);
+					if (index == 0) results.add(p);
+				}
+			};
+			threads.add(t);
+			t.start();
+			// the others start while the first conversion is running
+			if (threads.size() == 1) assertTrue (firstStarted.await(1, TimeUnit.MINUTES));
+		}
+		for (Thread t : threads) t.join();
+		assertTrue (overlapped.get());
+		// the threads that asked for the same pathway shared one conversion
+		assertEquals (2, results.size());
+		assertSame (results.get(0), results.get(1));
+		assertEquals (1, helper.count(0));
+		assertEquals (1, helper.count(1));
+		helper.close();
+	}
+
+	public void testUriDictionary()
+	{
+		UriDictionary dict = new UriDictionary();
+		assertEquals (-1, dict.get("missing"));
+		assertEquals (-1, dict.get(null));
+
+		// "Aa" and "BB" have the same hashCode, so all combinations collide
+		List<String> colliding = new ArrayList<String>();
+		for (int i = 0; i < 256; i++)
+		{
+			StringBuilder sb = new StringBuilder();
+			for (int bit = 0; bit < 8; bit++) sb.append((i & (1 << bit)) == 0 ? "Aa" : "BB");
+			colliding.add(sb.toString());
+		}
+		assertEquals (colliding.get(0).hashCode(), colliding.get(255).hashCode());
+
+		for (int i = 0; i < colliding.size(); i++) assertEquals (i, dict.intern(colliding.get(i)));
+		// enough to resize the table several times
+		for (int i = 0; i < 5000; i++) dict.intern(BASE + "#id" + i);
+		assertEquals (256 + 5000, dict.size());
+
+		for (int i = 0; i < colliding.size(); i++)
+		{
+			// a copy, not the interned instance
+			String uri = new String(colliding.get(i));
+			assertEquals (i, dict.get(uri));
+			assertEquals (i, dict.intern(uri));
+			assertEquals (colliding.get(i), dict.getUri(i));
+		}
+		for (int i = 0; i < 5000; i++) assertEquals (256 + i, dict.get(BASE + "#id" + i));
+		assertEquals (-1, dict.get(BASE + "#id5000"));
+		assertEquals (-1, dict.get("AaAaAaAaAaAaAaAaAa"));
+		assertEquals (256 + 5000, dict.size());
+	}
+
+	public void testIntObjectMap()
+	{
+		IntObjectMap<String> map = new IntObjectMap<String>(4);
+		assertNull (map.get(0));
+		assertFalse (map.containsKey(0));
+		assertFalse (map.containsKey(-1));
+
+		// keys that differ only in high bits, and enough of them to resize
+		for (int i = 0; i < 3000; i++) map.put(i << 16, "v" + i);
+		for (int i = 0; i < 3000; i++) map.put(i, "w" + i);
+		assertEquals (6000, map.size());
+		for (int i = 0; i < 3000; i++)
+		{
+			assertEquals ("v" + i, map.get(i << 16));
+			assertEquals ("w" + i, map.get(i));
+		}
+		assertNull (map.get(3000));
+		assertFalse (map.containsKey(3000 << 16));
+
+		// overwriting doesn't add an entry
+		map.put(7, "x");
+		assertEquals ("x", map.get(7));
+		assertEquals (6000, map.size());
+
+		// null values are distinct from missing keys
+		map.put(123456789, null);
+		assertTrue (map.containsKey(123456789));
+		assertNull (map.get(123456789));
+		assertEquals (6001, map.size());
+
+		try
+		{
+			map.put(-1, "negative");
+			fail ("Expected IllegalArgumentException");
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+
+		map.clear();
+		assertEquals (0, map.size());
+		assertFalse (map.containsKey(7));
+		assertNull (map.get(0));
+	}
+
+	public void testModelIndex()
+	{
+		Model model = BioPAXLevel.L3.getDefaultFactory().createModel();
+		Pathway pwy = model.addNew(Pathway.class, BASE + "#pathway");
+		PathwayStep step = model.addNew(PathwayStep.class, BASE + "#step");
+		BiochemicalReaction rxn = model.addNew(BiochemicalReaction.class, BASE + "#rxn");
+		Catalysis cat = model.addNew(Catalysis.class, BASE + "#cat");
+		Protein protein = model.addNew(Protein.class, BASE + "#protein");
+		SmallMolecule sm = model.addNew(SmallMolecule.class, BASE + "#sm");
+		Gene gene = model.addNew(Gene.class, BASE + "#gene");
+		model.addNew(ProteinReference.class, BASE + "#ref");
+
+		UriDictionary dict = new UriDictionary();
+		ModelIndex index = new ModelIndex(model, dict);
+
+		// every element gets an id, including the ones that are not indexed
+		assertEquals (8, dict.size());
+		assertTrue (dict.get(BASE + "#ref") >= 0);
+		assertEquals (-1, dict.get(BASE + "#missing"));
+
+		assertEquals (1, index.getPathways().size());
+		assertSame (pwy, index.getPathways().get(0));
+		assertEquals (1, index.getPathwaySteps().size());
+		assertSame (step, index.getPathwaySteps().get(0));
+
+		assertEquals (2, index.getInteractions().size());
+		assertTrue (index.getInteractions().contains(rxn));
+		assertTrue (index.getInteractions().contains(cat));
+
+		assertEquals (3, index.getPhysicalEntities().size());
+		assertTrue (index.getPhysicalEntities().contains(protein));
+		assertTrue (index.getPhysicalEntities().contains(sm));
+		assertTrue (index.getPhysicalEntities().contains(gene));
+
+		assertEquals (5, index.getConvertible().size());
+		assertFalse (index.getConvertible().contains(pwy));
+
+		try
+		{
+			index.getConvertible().clear();
+			fail ("Expected an unmodifiable list");
+		}
+		catch (UnsupportedOperationException expected)
+		{
+		}
+	}
+}